@@ -0,0 +1,268 @@
+package se.fredrikolsson.gavagai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class responsible for spreading lookups in Gavagai's semantic memories over a number of API keys.
+ * <p>
+ * Each lookup is made with the key that has the most calls left of its quota, or, when no quota is given, with the
+ * key that has been used the least. A key that is answered with HTTP status 429, Too Many Requests, is taken out of
+ * rotation for a cooldown period, which is doubled for every consecutive 429 up to a limit. When all keys are
+ * cooling down, lookups wait for the first one to come back. A single instance is shared by all request workers.
+ */
+class ApiKeyPool {
+
+    private static Logger logger = LoggerFactory.getLogger(ApiKeyPool.class);
+
+    final static long UNLIMITED = 0;
+
+    private final static int HTTP_STATUS_TOO_MANY_REQUESTS = 429;
+    private final static int MAX_COOLDOWN_DOUBLINGS = 5;
+
+    private final List<ApiKey> keys;
+    private final long quotaPerKey;
+    private final long cooldownMillis;
+
+
+    /**
+     * @param quotaPerKey    the maximum number of calls to make with each key, or {@link #UNLIMITED}.
+     * @param cooldownMillis the time a key is kept out of rotation after its first 429.
+     */
+    ApiKeyPool(List<String> keys, long quotaPerKey, long cooldownMillis) {
+        if (keys.isEmpty()) {
+            throw new IllegalArgumentException("At least one API key is needed");
+        }
+        this.keys = new ArrayList<>();
+        for (String key : keys) {
+            this.keys.add(new ApiKey(key));
+        }
+        this.quotaPerKey = quotaPerKey;
+        this.cooldownMillis = cooldownMillis;
+    }
+
+
+    /**
+     * Reads API keys from a file holding one key per line. Empty lines and lines starting with # are skipped.
+     */
+    static List<String> readKeys(String fileName) throws IOException {
+        List<String> result = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                result.add(line);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Picks the key to make the next lookup with, waiting for one to come out of cooldown if necessary.
+     *
+     * @return the key, or null if every key has used up its quota.
+     */
+    synchronized ApiKey acquire() throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            ApiKey best = findBest(now);
+            if (best != null) {
+                best.setNumCalls(best.getNumCalls() + 1);
+                return best;
+            }
+            long firstCooldownEnd = Long.MAX_VALUE;
+            for (ApiKey key : getKeys()) {
+                if (hasQuotaLeft(key)) {
+                    firstCooldownEnd = Math.min(firstCooldownEnd, key.getCooldownEnd());
+                }
+            }
+            if (firstCooldownEnd == Long.MAX_VALUE) {
+                return null;
+            }
+            wait(firstCooldownEnd - now);
+        }
+    }
+
+
+    /**
+     * Picks a key to make an optional lookup with, such as a hedged request, without waiting.
+     *
+     * @return the key, or null if no key is available right now.
+     */
+    synchronized ApiKey tryAcquire() {
+        ApiKey best = findBest(System.currentTimeMillis());
+        if (best != null) {
+            best.setNumCalls(best.getNumCalls() + 1);
+        }
+        return best;
+    }
+
+
+    /**
+     * Gives back a key acquired for a lookup that was not made after all.
+     */
+    synchronized void release(ApiKey key) {
+        key.setNumCalls(key.getNumCalls() - 1);
+        notifyAll();
+    }
+
+
+    /**
+     * Records the HTTP status of a lookup made with the given key.
+     */
+    synchronized void recordStatus(ApiKey key, int httpStatus) {
+        if (httpStatus == HTTP_STATUS_TOO_MANY_REQUESTS) {
+            key.setNumRateLimited(key.getNumRateLimited() + 1);
+            long cooldown = getCooldownMillis() << Math.min(key.getNumConsecutiveRateLimited(), MAX_COOLDOWN_DOUBLINGS);
+            key.setNumConsecutiveRateLimited(key.getNumConsecutiveRateLimited() + 1);
+            key.setCooldownEnd(System.currentTimeMillis() + cooldown);
+            logger.warn("API key {} was rate limited. Taking it out of rotation for {} ms", key, cooldown);
+        } else {
+            key.setNumConsecutiveRateLimited(0);
+            if (httpStatus != 200) {
+                key.setNumFailed(key.getNumFailed() + 1);
+            }
+        }
+        notifyAll();
+    }
+
+
+    synchronized String getStatisticsMessage() {
+        StringBuilder s = new StringBuilder("API key usage:");
+        for (ApiKey key : getKeys()) {
+            s.append("\n  ").append(key).append(": ").append(key.getNumCalls()).append(" calls");
+            if (getQuotaPerKey() != UNLIMITED) {
+                s.append(" of ").append(getQuotaPerKey());
+            }
+            s.append(", ").append(key.getNumRateLimited()).append(" rate limited, ")
+                    .append(key.getNumFailed()).append(" failed otherwise");
+        }
+        return s.toString();
+    }
+
+
+    /**
+     * Returns the key with quota left and not cooling down that has been used the least, or null if there is none.
+     */
+    private ApiKey findBest(long now) {
+        ApiKey best = null;
+        for (ApiKey key : getKeys()) {
+            if (hasQuotaLeft(key) && key.getCooldownEnd() <= now
+                    && (best == null || key.getNumCalls() < best.getNumCalls())) {
+                // With the same quota for every key, the least used key has the most calls left.
+                best = key;
+            }
+        }
+        return best;
+    }
+
+
+    private boolean hasQuotaLeft(ApiKey key) {
+        return getQuotaPerKey() == UNLIMITED || key.getNumCalls() < getQuotaPerKey();
+    }
+
+
+    private List<ApiKey> getKeys() {
+        return keys;
+    }
+
+
+    private long getQuotaPerKey() {
+        return quotaPerKey;
+    }
+
+
+    private long getCooldownMillis() {
+        return cooldownMillis;
+    }
+
+
+    /**
+     * An API key and its usage. Guarded by the pool it belongs to.
+     */
+    static class ApiKey {
+
+        private final String key;
+        private long numCalls;
+        private long numRateLimited;
+        private long numFailed;
+        private int numConsecutiveRateLimited;
+        private long cooldownEnd;
+
+
+        ApiKey(String key) {
+            this.key = key;
+        }
+
+
+        String getKey() {
+            return key;
+        }
+
+
+        /**
+         * Returns the key with all but its last four characters masked, for logging.
+         */
+        @Override
+        public String toString() {
+            return getKey().length() <= 4 ? "****" : "****" + getKey().substring(getKey().length() - 4);
+        }
+
+
+        private long getNumCalls() {
+            return numCalls;
+        }
+
+
+        private void setNumCalls(long numCalls) {
+            this.numCalls = numCalls;
+        }
+
+
+        private long getNumRateLimited() {
+            return numRateLimited;
+        }
+
+
+        private void setNumRateLimited(long numRateLimited) {
+            this.numRateLimited = numRateLimited;
+        }
+
+
+        private long getNumFailed() {
+            return numFailed;
+        }
+
+
+        private void setNumFailed(long numFailed) {
+            this.numFailed = numFailed;
+        }
+
+
+        private int getNumConsecutiveRateLimited() {
+            return numConsecutiveRateLimited;
+        }
+
+
+        private void setNumConsecutiveRateLimited(int numConsecutiveRateLimited) {
+            this.numConsecutiveRateLimited = numConsecutiveRateLimited;
+        }
+
+
+        private long getCooldownEnd() {
+            return cooldownEnd;
+        }
+
+
+        private void setCooldownEnd(long cooldownEnd) {
+            this.cooldownEnd = cooldownEnd;
+        }
+    }
+}
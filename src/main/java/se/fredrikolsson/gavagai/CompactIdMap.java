@@ -0,0 +1,112 @@
+package se.fredrikolsson.gavagai;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Map from string keys to non-negative ids, holding 128 bit hashes of the keys instead of the keys themselves, in
+ * primitive arrays with open addressing. It takes 48 to 96 bytes per entry, depending on how full its arrays are,
+ * however long the keys, which lets a merge keep track of every term in the merged graph without holding the terms
+ * themselves in memory. Two keys are only mistaken for each other if their 128 bit hashes collide.
+ * <p>
+ * Instances are not thread safe for writing, but may be read by several threads once they are no longer written.
+ */
+class CompactIdMap {
+
+    static final long NO_ID = -1;
+
+    private final static HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+    private final static int INITIAL_CAPACITY = 1 << 16;
+
+    private long[] hashes;
+    private long[] ids;
+    private int size;
+
+
+    CompactIdMap() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+
+    /**
+     * @return the id of the key, or {@link #NO_ID} if it is not in the map.
+     */
+    long get(String key) {
+        ByteBuffer hash = hash(key);
+        int slot = findSlot(hash.getLong(0), hash.getLong(8));
+        return ids[slot];
+    }
+
+
+    /**
+     * Maps a key to an id, replacing any previous id.
+     */
+    void put(String key, long id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Ids must be non-negative, got " + id);
+        }
+        if ((size + 1) * 2 > ids.length) {
+            grow();
+        }
+        ByteBuffer hash = hash(key);
+        insert(hash.getLong(0), hash.getLong(8), id);
+    }
+
+
+    int size() {
+        return size;
+    }
+
+
+    private void insert(long hash1, long hash2, long id) {
+        int slot = findSlot(hash1, hash2);
+        if (ids[slot] == NO_ID) {
+            size++;
+        }
+        hashes[2 * slot] = hash1;
+        hashes[2 * slot + 1] = hash2;
+        ids[slot] = id;
+    }
+
+
+    /**
+     * Returns the slot holding the given hash, or the empty slot where it belongs.
+     */
+    private int findSlot(long hash1, long hash2) {
+        int mask = ids.length - 1;
+        int slot = (int) hash1 & mask;
+        while (ids[slot] != NO_ID && !(hashes[2 * slot] == hash1 && hashes[2 * slot + 1] == hash2)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+
+    private void grow() {
+        long[] oldHashes = hashes;
+        long[] oldIds = ids;
+        allocate(oldIds.length * 2);
+        size = 0;
+        for (int slot = 0; slot < oldIds.length; slot++) {
+            if (oldIds[slot] != NO_ID) {
+                insert(oldHashes[2 * slot], oldHashes[2 * slot + 1], oldIds[slot]);
+            }
+        }
+    }
+
+
+    private void allocate(int capacity) {
+        hashes = new long[2 * capacity];
+        ids = new long[capacity];
+        Arrays.fill(ids, NO_ID);
+    }
+
+
+    private static ByteBuffer hash(String key) {
+        return ByteBuffer.wrap(HASH_FUNCTION.hashString(key, StandardCharsets.UTF_8).asBytes());
+    }
+}
@@ -0,0 +1,113 @@
+package se.fredrikolsson.gavagai;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class holding the limits imposed on a crawl, and keeping track of how much of them has been spent.
+ * <p>
+ * A limit set to zero is treated as unlimited. Once any of the limits is reached, the budget is exhausted: no
+ * new lookup requests are spawned, and pending requests are dropped instead of being sent to the API, while
+ * responses already retrieved are still persisted.
+ */
+class CrawlBudget {
+
+    static final int UNLIMITED = 0;
+
+    private final int maxNeighborsPerTerm;
+    private final long maxApiCalls;
+    private final long maxNodes;
+    private final long deadline;
+    private final AtomicLong numApiCalls = new AtomicLong();
+    private volatile long numNodes;
+
+
+    CrawlBudget(int maxNeighborsPerTerm, long maxApiCalls, long maxRunningTimeSeconds, long maxNodes) {
+        this.maxNeighborsPerTerm = maxNeighborsPerTerm;
+        this.maxApiCalls = maxApiCalls;
+        this.maxNodes = maxNodes;
+        this.deadline = maxRunningTimeSeconds > UNLIMITED
+                ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(maxRunningTimeSeconds)
+                : Long.MAX_VALUE;
+    }
+
+
+    /**
+     * Reserves one call to the Lexicon API.
+     *
+     * @return true if the call fits within the budget, false if the budget is exhausted.
+     */
+    boolean tryAcquireApiCall() {
+        if (isExhausted()) {
+            return false;
+        }
+        if (getMaxApiCalls() == UNLIMITED) {
+            numApiCalls.incrementAndGet();
+            return true;
+        }
+        long n;
+        do {
+            n = numApiCalls.get();
+            if (n >= getMaxApiCalls()) {
+                return false;
+            }
+        } while (!numApiCalls.compareAndSet(n, n + 1));
+        return true;
+    }
+
+
+    boolean isExhausted() {
+        return (getMaxApiCalls() != UNLIMITED && getNumApiCalls() >= getMaxApiCalls())
+                || (getMaxNodes() != UNLIMITED && getNumNodes() >= getMaxNodes())
+                || System.currentTimeMillis() >= getDeadline();
+    }
+
+
+    String getExhaustionReason() {
+        if (getMaxApiCalls() != UNLIMITED && getNumApiCalls() >= getMaxApiCalls()) {
+            return "maximum number of API calls (" + getMaxApiCalls() + ") reached";
+        }
+        if (getMaxNodes() != UNLIMITED && getNumNodes() >= getMaxNodes()) {
+            return "maximum number of nodes (" + getMaxNodes() + ") reached";
+        }
+        if (System.currentTimeMillis() >= getDeadline()) {
+            return "maximum running time reached";
+        }
+        return "budget not exhausted";
+    }
+
+
+    int getMaxNeighborsPerTerm() {
+        return maxNeighborsPerTerm;
+    }
+
+
+    long getNumApiCalls() {
+        return numApiCalls.get();
+    }
+
+
+    long getNumNodes() {
+        return numNodes;
+    }
+
+
+    void setNumNodes(long numNodes) {
+        this.numNodes = numNodes;
+    }
+
+
+    private long getMaxApiCalls() {
+        return maxApiCalls;
+    }
+
+
+    private long getMaxNodes() {
+        return maxNodes;
+    }
+
+
+    private long getDeadline() {
+        return deadline;
+    }
+}
@@ -0,0 +1,390 @@
+package se.fredrikolsson.gavagai;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class responsible for accepting crawl jobs over a small local HTTP/JSON API, and running them in a graph creator
+ * that is kept running between jobs, with its graph database, request workers and response worker.
+ * <p>
+ * Jobs run concurrently. Each job has its own starting terms, maximum distance and budget, and reaches the terms
+ * within its own neighborhood, while the lookups made by all jobs are shared through a cache of responses. The API:
+ * <ul>
+ * <li><code>POST /jobs</code> with a body such as <code>{"terms": ["no-fly zone"], "language": "en",
+ * "maxDistance": 2}</code> submits a job, and answers with its id. The optional <code>maxNeighbors</code>,
+ * <code>maxCalls</code>, <code>maxSeconds</code> and <code>maxNodes</code> correspond to -k, -c, -w and -n.</li>
+ * <li><code>GET /jobs</code> lists the jobs, and <code>GET /jobs/&lt;id&gt;</code> gives the progress of one.
+ * Add <code>?wait=&lt;seconds&gt;</code> to wait for the job to finish first.</li>
+ * <li><code>DELETE /jobs/&lt;id&gt;</code> cancels a job.</li>
+ * </ul>
+ */
+class CrawlDaemon implements Stoppable {
+
+    private static Logger logger = LoggerFactory.getLogger(CrawlDaemon.class);
+
+    private final static int MAX_RETAINED_JOBS = 1000;
+    private final static long MAX_WAIT_SECONDS = 300;
+
+    private final GraphCreator graphCreator;
+    private final Set<String> languageCodes;
+    private final int defaultMaxDistance;
+    private final int defaultMaxNeighborsPerTerm;
+    private final long defaultMaxApiCalls;
+    private final long defaultMaxRunningTimeSeconds;
+    private final long defaultMaxNodes;
+    private final Map<String, CrawlJob> jobs;
+    private final ExecutorService requestExecutor;
+    private long numJobsSubmitted;
+    private HttpServer httpServer;
+    private boolean isRunning;
+
+
+    /**
+     * @param languageCodes the languages the graph creator crawls. Jobs can only be submitted in these.
+     */
+    CrawlDaemon(GraphCreator graphCreator,
+                Set<String> languageCodes,
+                int defaultMaxDistance,
+                int defaultMaxNeighborsPerTerm,
+                long defaultMaxApiCalls,
+                long defaultMaxRunningTimeSeconds,
+                long defaultMaxNodes) {
+        this.graphCreator = graphCreator;
+        this.languageCodes = languageCodes;
+        this.defaultMaxDistance = defaultMaxDistance;
+        this.defaultMaxNeighborsPerTerm = defaultMaxNeighborsPerTerm;
+        this.defaultMaxApiCalls = defaultMaxApiCalls;
+        this.defaultMaxRunningTimeSeconds = defaultMaxRunningTimeSeconds;
+        this.defaultMaxNodes = defaultMaxNodes;
+        this.jobs = new LinkedHashMap<>();
+        // Unbounded, since requests waiting for a job to finish hold their thread for up to MAX_WAIT_SECONDS.
+        this.requestExecutor = Executors.newCachedThreadPool(new NamingThreadFactory("jobApiWorker"));
+    }
+
+
+    void start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/jobs", new JobsHandler());
+        server.setExecutor(getRequestExecutor());
+        server.start();
+        setHttpServer(server);
+        setRunning(true);
+        logger.info("Accepting crawl jobs on http://localhost:{}/jobs", port);
+    }
+
+
+    /**
+     * Submits a job with the default limits given on the command line.
+     */
+    CrawlJob submit(List<String> terms, String languageCode) {
+        return submit(terms, languageCode, getDefaultMaxDistance(), new CrawlBudget(
+                getDefaultMaxNeighborsPerTerm(),
+                getDefaultMaxApiCalls(),
+                getDefaultMaxRunningTimeSeconds(),
+                getDefaultMaxNodes()));
+    }
+
+
+    /**
+     * Queues the lookups of the starting terms of a new job. The job is registered while holding the lock of the
+     * daemon, but its lookups are queued without it, and without waiting, so that a full queue never keeps the
+     * other requests to the API waiting.
+     *
+     * @param terms        the starting terms, each optionally given as <code>term@lang</code>.
+     * @param languageCode the language of the starting terms given without one.
+     * @throws IllegalArgumentException if a term is in a language not crawled by the daemon.
+     * @throws IllegalStateException    if there is no room in the request queue for the starting terms. The job is
+     *                                  then cancelled, and forgotten.
+     */
+    CrawlJob submit(List<String> terms, String languageCode, int maxDistance, CrawlBudget crawlBudget) {
+        Map<String, Integer> languageWeights = new LinkedHashMap<>();
+        languageWeights.put(languageCode, 1);
+        List<LookupRequest> startRequests = GraphCreator.createStartRequests(terms, languageWeights);
+        for (String code : languageWeights.keySet()) {
+            if (!getLanguageCodes().contains(code)) {
+                throw new IllegalArgumentException("Not crawling the language \"" + code
+                        + "\". Start the daemon with -l " + code + " to crawl it");
+            }
+        }
+        CrawlJob job = register(maxDistance, languageCode, crawlBudget);
+        job.lookupsIssued(startRequests.size());
+        logger.info("Submitting job {} with {} starting terms and maximum distance {}",
+                job.getId(), startRequests.size(), maxDistance);
+        int numQueued = 0;
+        for (LookupRequest request : startRequests) {
+            if (!getGraphCreator().offerLookupRequest(
+                    new LookupRequest(request.getTerm(), request.getLanguageCode(), 0, job))) {
+                break;
+            }
+            numQueued++;
+        }
+        if (numQueued < startRequests.size()) {
+            // The lookups already queued are dropped by the request workers, since the job is cancelled.
+            job.cancel();
+            for (int i = numQueued; i < startRequests.size(); i++) {
+                job.lookupDone();
+            }
+            unregister(job);
+            logger.info("Rejecting job {}: the request queue is full", job.getId());
+            throw new IllegalStateException("The request queue is full. Try again later");
+        }
+        return job;
+    }
+
+
+    private synchronized CrawlJob register(int maxDistance, String languageCode, CrawlBudget crawlBudget) {
+        CrawlJob job = new CrawlJob(String.valueOf(++numJobsSubmitted), languageCode, maxDistance, crawlBudget);
+        getJobs().put(job.getId(), job);
+        removeOldJobs();
+        return job;
+    }
+
+
+    private synchronized void unregister(CrawlJob job) {
+        getJobs().remove(job.getId());
+    }
+
+
+    private synchronized CrawlJob getJob(String id) {
+        return getJobs().get(id);
+    }
+
+
+    private synchronized List<CrawlJob> getAllJobs() {
+        return new ArrayList<>(getJobs().values());
+    }
+
+
+    /**
+     * Forgets the oldest finished jobs, once more than {@link #MAX_RETAINED_JOBS} jobs are kept.
+     */
+    private void removeOldJobs() {
+        Iterator<CrawlJob> i = getJobs().values().iterator();
+        while (getJobs().size() > MAX_RETAINED_JOBS && i.hasNext()) {
+            if (i.next().isFinished()) {
+                i.remove();
+            }
+        }
+    }
+
+
+    @Override
+    public void stop() {
+        if (!isStopped()) {
+            setRunning(false);
+            getHttpServer().stop(1);
+            getRequestExecutor().shutdownNow();
+            for (CrawlJob job : getAllJobs()) {
+                job.cancel();
+            }
+        }
+    }
+
+
+    @Override
+    public boolean isStopped() {
+        return !isRunning();
+    }
+
+
+    private GraphCreator getGraphCreator() {
+        return graphCreator;
+    }
+
+
+    private Set<String> getLanguageCodes() {
+        return languageCodes;
+    }
+
+
+    private int getDefaultMaxDistance() {
+        return defaultMaxDistance;
+    }
+
+
+    private int getDefaultMaxNeighborsPerTerm() {
+        return defaultMaxNeighborsPerTerm;
+    }
+
+
+    private long getDefaultMaxApiCalls() {
+        return defaultMaxApiCalls;
+    }
+
+
+    private long getDefaultMaxRunningTimeSeconds() {
+        return defaultMaxRunningTimeSeconds;
+    }
+
+
+    private long getDefaultMaxNodes() {
+        return defaultMaxNodes;
+    }
+
+
+    private Map<String, CrawlJob> getJobs() {
+        return jobs;
+    }
+
+
+    private ExecutorService getRequestExecutor() {
+        return requestExecutor;
+    }
+
+
+    private HttpServer getHttpServer() {
+        return httpServer;
+    }
+
+
+    private void setHttpServer(HttpServer httpServer) {
+        this.httpServer = httpServer;
+    }
+
+
+    private boolean isRunning() {
+        return isRunning;
+    }
+
+
+    private void setRunning(boolean running) {
+        isRunning = running;
+    }
+
+
+    private class JobsHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int status = 200;
+            String body;
+            try {
+                String path = exchange.getRequestURI().getPath().replaceAll("/+$", "");
+                String method = exchange.getRequestMethod();
+                if (path.equals("/jobs")) {
+                    if ("GET".equals(method)) {
+                        JSONArray result = new JSONArray();
+                        for (CrawlJob job : getAllJobs()) {
+                            result.put(job.toJson());
+                        }
+                        body = new JSONObject().put("jobs", result).toString();
+                    } else if ("POST".equals(method)) {
+                        CrawlJob job = submit(new JSONObject(readBody(exchange)));
+                        status = 201;
+                        exchange.getResponseHeaders().set("Location", "/jobs/" + job.getId());
+                        body = job.toJson().toString();
+                    } else {
+                        status = 405;
+                        body = error("Only GET and POST are supported");
+                    }
+                } else {
+                    CrawlJob job = getJob(path.substring(path.lastIndexOf('/') + 1));
+                    if (job == null || !path.equals("/jobs/" + job.getId())) {
+                        status = 404;
+                        body = error("No such job");
+                    } else if ("GET".equals(method)) {
+                        String query = exchange.getRequestURI().getQuery();
+                        if (query != null && query.startsWith("wait=")) {
+                            long seconds = Math.min(Long.parseLong(query.substring("wait=".length())),
+                                    MAX_WAIT_SECONDS);
+                            job.awaitCompletion(TimeUnit.SECONDS.toMillis(seconds));
+                        }
+                        body = job.toJson().toString();
+                    } else if ("DELETE".equals(method)) {
+                        job.cancel();
+                        logger.info("Cancelling job {}", job.getId());
+                        body = job.toJson().toString();
+                    } else {
+                        status = 405;
+                        body = error("Only GET and DELETE are supported");
+                    }
+                }
+            } catch (JSONException | NumberFormatException e) {
+                status = 400;
+                body = error("Malformed request: " + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                status = 400;
+                body = error(e.getMessage());
+            } catch (IllegalStateException e) {
+                status = 503;
+                body = error(e.getMessage());
+            } catch (Exception e) {
+                logger.error("Caught exception: {}", e.getMessage(), e);
+                status = 500;
+                body = error(e.getMessage());
+            }
+
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+
+
+        private CrawlJob submit(JSONObject request) throws JSONException {
+            JSONArray terms = request.getJSONArray("terms");
+            if (terms.length() == 0) {
+                throw new IllegalArgumentException("No terms given");
+            }
+            List<String> startTerms = new ArrayList<>();
+            for (int i = 0; i < terms.length(); i++) {
+                startTerms.add(terms.getString(i));
+            }
+            return CrawlDaemon.this.submit(
+                    startTerms,
+                    request.optString("language", getLanguageCodes().iterator().next()),
+                    request.optInt("maxDistance", getDefaultMaxDistance()),
+                    new CrawlBudget(
+                            request.optInt("maxNeighbors", getDefaultMaxNeighborsPerTerm()),
+                            request.optLong("maxCalls", getDefaultMaxApiCalls()),
+                            request.optLong("maxSeconds", getDefaultMaxRunningTimeSeconds()),
+                            request.optLong("maxNodes", getDefaultMaxNodes())));
+        }
+
+
+        private String readBody(HttpExchange exchange) throws IOException {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            try (InputStream in = exchange.getRequestBody()) {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    result.write(buffer, 0, n);
+                }
+            }
+            return new String(result.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+
+        private String error(String message) {
+            try {
+                return new JSONObject().put("error", message).toString();
+            } catch (JSONException e) {
+                return "{}";
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package se.fredrikolsson.gavagai;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class responsible for estimating the size and cost of a crawl before it is started, by looking up a small
+ * random sample of the terms at each distance from the starting terms.
+ * <p>
+ * The starting terms are all looked up. At each following distance, a sample of terms is drawn from the neighbors
+ * of the terms sampled at the previous distance, that is, along random paths out from the starting terms. For each
+ * sampled term, the number of its neighbors not seen before is recorded. The number of new terms at the next
+ * distance is projected as the number of terms at the current distance times the mean number of unseen neighbors
+ * per term, with a 95% confidence interval from the standard error of that mean. Since only a sample of the terms
+ * has been seen, the overlap between neighborhoods is underestimated, and the projections lean towards the high
+ * side. The running time through each distance is projected from the number of lookups and the mean latency of the
+ * lookups made for the estimate.
+ */
+class CrawlEstimator {
+
+    private static Logger logger = LoggerFactory.getLogger(CrawlEstimator.class);
+
+    private final static double Z_95 = 1.96;
+    private final static long REQUEST_WORKER_PAUSE_MILLIS = 100;
+
+    private final LexiconApiClient lexiconApiClient;
+    private final String languageCode;
+    private final int maxDistance;
+    private final int maxNeighborsPerTerm;
+    private final int numSamplesPerDistance;
+    private final int numRequestWorkers;
+    private final TermCanonicalizer termCanonicalizer;
+    private final Random random;
+    private final Set<String> seenTerms;
+    private long numLookups;
+    private long totalLatencyMillis;
+
+
+    CrawlEstimator(ApiKeyPool apiKeyPool, String languageCode, int maxDistance, int maxNeighborsPerTerm,
+                   int numSamplesPerDistance, int numRequestWorkers, TermCanonicalizer termCanonicalizer) {
+        this.lexiconApiClient = new LexiconApiClient(apiKeyPool, new HedgingPolicy(0.0));
+        this.languageCode = languageCode;
+        this.maxDistance = maxDistance;
+        this.maxNeighborsPerTerm = maxNeighborsPerTerm;
+        this.numSamplesPerDistance = numSamplesPerDistance;
+        this.numRequestWorkers = numRequestWorkers;
+        this.termCanonicalizer = termCanonicalizer;
+        this.random = new Random();
+        this.seenTerms = new HashSet<>();
+    }
+
+
+    void estimate(List<String> startTerms) throws Exception {
+        logger.info("Estimating the size of a crawl to distance {} from {} starting terms, sampling {} terms per distance",
+                getMaxDistance(), startTerms.size(), getNumSamplesPerDistance());
+
+        getSeenTerms().addAll(startTerms);
+        List<String> sample = new ArrayList<>(startTerms);
+        double numTerms = startTerms.size();
+        double numTermsLow = numTerms;
+        double numTermsHigh = numTerms;
+        double numProjectedLookups = numTerms;
+        double numProjectedLookupsLow = numTerms;
+        double numProjectedLookupsHigh = numTerms;
+        double numUniqueTerms = numTerms;
+        double numUniqueTermsLow = numTerms;
+        double numUniqueTermsHigh = numTerms;
+
+        // The rows of the report, one per distance, are formatted once the mean lookup latency is known.
+        List<double[]> rows = new ArrayList<>();
+        rows.add(new double[]{numTerms, numTermsLow, numTermsHigh, numUniqueTerms, numUniqueTermsLow,
+                numUniqueTermsHigh, numProjectedLookups, numProjectedLookupsLow, numProjectedLookupsHigh});
+
+        // Terms at distance 0 to maxDistance are looked up. Those at maxDistance + 1 are only stored.
+        for (int distance = 0; distance <= getMaxDistance() && !sample.isEmpty(); distance++) {
+            List<Integer> numUnseenNeighbors = new ArrayList<>();
+            List<String> neighbors = new ArrayList<>();
+            for (String term : sample) {
+                List<String> expanded;
+                try {
+                    expanded = lookup(term, distance);
+                } catch (Exception e) {
+                    logger.warn("Caught exception: {}. Leaving \"{}\" out of the sample", e.getMessage(), term);
+                    continue;
+                }
+                int unseen = 0;
+                for (String neighbor : expanded) {
+                    if (getSeenTerms().add(neighbor)) {
+                        unseen++;
+                        neighbors.add(neighbor);
+                    }
+                }
+                numUnseenNeighbors.add(unseen);
+            }
+
+            double mean = mean(numUnseenNeighbors);
+            double margin = Z_95 * standardError(numUnseenNeighbors, mean);
+            numTerms = numTerms * mean;
+            numTermsLow = numTermsLow * Math.max(0.0, mean - margin);
+            numTermsHigh = numTermsHigh * (mean + margin);
+            numUniqueTerms += numTerms;
+            numUniqueTermsLow += numTermsLow;
+            numUniqueTermsHigh += numTermsHigh;
+            if (distance + 1 <= getMaxDistance()) {
+                numProjectedLookups += numTerms;
+                numProjectedLookupsLow += numTermsLow;
+                numProjectedLookupsHigh += numTermsHigh;
+            }
+            rows.add(new double[]{numTerms, numTermsLow, numTermsHigh, numUniqueTerms, numUniqueTermsLow,
+                    numUniqueTermsHigh, numProjectedLookups, numProjectedLookupsLow, numProjectedLookupsHigh});
+
+            Collections.shuffle(neighbors, getRandom());
+            sample = neighbors.subList(0, Math.min(getNumSamplesPerDistance(), neighbors.size()));
+        }
+
+        double meanLatencyMillis = getNumLookups() > 0 ? (double) getTotalLatencyMillis() / getNumLookups() : 0.0;
+        // The running time added by each lookup, with the request workers looking up terms in parallel.
+        double millisPerLookup = (meanLatencyMillis + REQUEST_WORKER_PAUSE_MILLIS) / getNumRequestWorkers();
+        StringBuilder report = new StringBuilder("Estimated crawl size (95% confidence intervals):\n")
+                .append(String.format("  %8s %30s %30s %30s %42s%n",
+                        "distance", "new terms", "total terms", "total lookups", "running time"));
+        for (int distance = 0; distance < rows.size(); distance++) {
+            double[] row = rows.get(distance);
+            report.append(String.format("  %8d %30s %30s %30s %42s%n", distance,
+                    format(row[0], row[1], row[2]),
+                    format(row[3], row[4], row[5]),
+                    format(row[6], row[7], row[8]),
+                    formatDuration(row[6] * millisPerLookup) + " (" + formatDuration(row[7] * millisPerLookup)
+                            + " - " + formatDuration(row[8] * millisPerLookup) + ")"));
+        }
+        report.append(String.format("Mean lookup latency: %.0f ms. Estimated running time with %d request workers: %s (%s - %s)%n",
+                meanLatencyMillis,
+                getNumRequestWorkers(),
+                formatDuration(numProjectedLookups * millisPerLookup),
+                formatDuration(numProjectedLookupsLow * millisPerLookup),
+                formatDuration(numProjectedLookupsHigh * millisPerLookup)));
+        report.append(String.format("The estimate used %d calls to the Lexicon API", getNumLookups()));
+        logger.info(report.toString());
+    }
+
+
+    /**
+     * Looks up a term, and returns the neighbors that a crawl would expand.
+     */
+    private List<String> lookup(String term, int distance) throws Exception {
+        long startTime = System.currentTimeMillis();
+        JSONObject rawResponse = getLexiconApiClient().process(term, getLanguageCode());
+        setTotalLatencyMillis(getTotalLatencyMillis() + System.currentTimeMillis() - startTime);
+        setNumLookups(getNumLookups() + 1);
+
+        List<String> result = new ArrayList<>();
+        if (rawResponse.opt("semanticallySimilarWordFilaments") == null
+                || ((JSONArray) rawResponse.get("semanticallySimilarWordFilaments")).length() == 0) {
+            return result;
+        }
+        LookupResponse response = new LookupResponse(rawResponse, distance + 1, getLanguageCode(), term);
+        Set<String> neighbors = new LinkedHashSet<>();
+        for (String neighbor : response.getSemanticallySimilarTerms(getMaxNeighborsPerTerm())) {
+            neighbors.add(getTermCanonicalizer().canonicalize(neighbor));
+        }
+        for (String neighbor : neighbors) {
+            // Terms containing slash are never looked up by the crawler, see LexiconLookupResponseWorker.
+            if (!neighbor.contains("/")) {
+                result.add(neighbor);
+            }
+        }
+        return result;
+    }
+
+
+    private static double mean(List<Integer> values) {
+        if (values.isEmpty()) {
+            return 0.0;
+        }
+        double sum = 0.0;
+        for (int value : values) {
+            sum += value;
+        }
+        return sum / values.size();
+    }
+
+
+    private static double standardError(List<Integer> values, double mean) {
+        if (values.size() < 2) {
+            return mean;
+        }
+        double sumOfSquares = 0.0;
+        for (int value : values) {
+            sumOfSquares += (value - mean) * (value - mean);
+        }
+        return Math.sqrt(sumOfSquares / (values.size() - 1)) / Math.sqrt(values.size());
+    }
+
+
+    private static String format(double estimate, double low, double high) {
+        return String.format("%.0f (%.0f - %.0f)", estimate, low, high);
+    }
+
+
+    private static String formatDuration(double millis) {
+        long m = (long) millis;
+        return String.format("%d h, %d min",
+                TimeUnit.MILLISECONDS.toHours(m),
+                TimeUnit.MILLISECONDS.toMinutes(m) - TimeUnit.HOURS.toMinutes(TimeUnit.MILLISECONDS.toHours(m)));
+    }
+
+
+    private LexiconApiClient getLexiconApiClient() {
+        return lexiconApiClient;
+    }
+
+
+    private String getLanguageCode() {
+        return languageCode;
+    }
+
+
+    private int getMaxDistance() {
+        return maxDistance;
+    }
+
+
+    private int getMaxNeighborsPerTerm() {
+        return maxNeighborsPerTerm;
+    }
+
+
+    private int getNumSamplesPerDistance() {
+        return numSamplesPerDistance;
+    }
+
+
+    private int getNumRequestWorkers() {
+        return numRequestWorkers;
+    }
+
+
+    private TermCanonicalizer getTermCanonicalizer() {
+        return termCanonicalizer;
+    }
+
+
+    private Random getRandom() {
+        return random;
+    }
+
+
+    private Set<String> getSeenTerms() {
+        return seenTerms;
+    }
+
+
+    private long getNumLookups() {
+        return numLookups;
+    }
+
+
+    private void setNumLookups(long numLookups) {
+        this.numLookups = numLookups;
+    }
+
+
+    private long getTotalLatencyMillis() {
+        return totalLatencyMillis;
+    }
+
+
+    private void setTotalLatencyMillis(long totalLatencyMillis) {
+        this.totalLatencyMillis = totalLatencyMillis;
+    }
+}
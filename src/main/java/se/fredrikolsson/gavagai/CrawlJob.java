@@ -0,0 +1,190 @@
+package se.fredrikolsson.gavagai;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class holding the state of one crawl submitted to a running crawl daemon: its limits, the terms it has reached,
+ * and the number of its lookups still pending.
+ * <p>
+ * A lookup is pending from the moment its request is queued until its response, if any, has been written. A job
+ * is finished when it has no pending lookups left, which happens once its neighborhood is exhausted, its budget is
+ * spent, or it has been cancelled. The terms reached are only touched by the response worker, and are dropped when
+ * the job finishes.
+ */
+class CrawlJob {
+
+    private static Logger logger = LoggerFactory.getLogger(CrawlJob.class);
+
+    private final String id;
+    private final String languageCode;
+    private final int maxDistance;
+    private final CrawlBudget crawlBudget;
+    private final long startTime;
+    private final AtomicInteger numPendingLookups = new AtomicInteger();
+    private Map<String, Integer> lookupRequestsMadeForTerms;
+    private volatile Status status;
+    private volatile long endTime;
+
+
+    CrawlJob(String id, String languageCode, int maxDistance, CrawlBudget crawlBudget) {
+        this.id = id;
+        this.languageCode = languageCode;
+        this.maxDistance = maxDistance;
+        this.crawlBudget = crawlBudget;
+        this.startTime = System.currentTimeMillis();
+        this.lookupRequestsMadeForTerms = new HashMap<>();
+        setStatus(Status.RUNNING);
+    }
+
+
+    void lookupsIssued(int numLookups) {
+        numPendingLookups.addAndGet(numLookups);
+    }
+
+
+    /**
+     * Counts a lookup as done. Each lookup issued must be counted down exactly once, or the job either never
+     * finishes, or finishes early. A job counted below zero is logged, since it finished before all its lookups
+     * were done.
+     */
+    void lookupDone() {
+        int numPending = numPendingLookups.decrementAndGet();
+        if (numPending == 0) {
+            finish();
+        } else if (numPending < 0) {
+            logger.error("Job {} has counted down {} lookups more than were issued", getId(), -numPending);
+        }
+    }
+
+
+    /**
+     * Asks the job to stop. Its pending lookups are dropped, and it finishes as cancelled once they are all gone.
+     */
+    synchronized void cancel() {
+        if (getStatus() == Status.RUNNING) {
+            setStatus(Status.CANCELLING);
+        }
+    }
+
+
+    boolean isCancelled() {
+        return getStatus() == Status.CANCELLING || getStatus() == Status.CANCELLED;
+    }
+
+
+    boolean isFinished() {
+        return getStatus() == Status.DONE || getStatus() == Status.CANCELLED;
+    }
+
+
+    /**
+     * Waits for the job to finish, for at most the given time.
+     *
+     * @return true if the job is finished.
+     */
+    synchronized boolean awaitCompletion(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (!isFinished() && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return isFinished();
+    }
+
+
+    JSONObject toJson() throws JSONException {
+        JSONObject result = new JSONObject()
+                .put("id", getId())
+                .put("status", getStatus().name().toLowerCase())
+                .put("language", getLanguageCode())
+                .put("maxDistance", getMaxDistance())
+                .put("pendingLookups", Math.max(getNumPendingLookups(), 0))
+                .put("apiCalls", getCrawlBudget().getNumApiCalls())
+                .put("terms", getCrawlBudget().getNumNodes())
+                .put("runningTimeMillis", (isFinished() ? getEndTime() : System.currentTimeMillis()) - getStartTime());
+        if (getCrawlBudget().isExhausted()) {
+            result.put("limitedBy", getCrawlBudget().getExhaustionReason());
+        }
+        return result;
+    }
+
+
+    int getNumPendingLookups() {
+        return numPendingLookups.get();
+    }
+
+
+    String getId() {
+        return id;
+    }
+
+
+    String getLanguageCode() {
+        return languageCode;
+    }
+
+
+    int getMaxDistance() {
+        return maxDistance;
+    }
+
+
+    CrawlBudget getCrawlBudget() {
+        return crawlBudget;
+    }
+
+
+    /**
+     * Returns the number of times each term has been reached by this job, by term key. Must only be called by
+     * the response worker, or before the job's requests are queued.
+     */
+    Map<String, Integer> getLookupRequestsMadeForTerms() {
+        return lookupRequestsMadeForTerms;
+    }
+
+
+    Status getStatus() {
+        return status;
+    }
+
+
+    private synchronized void finish() {
+        setStatus(getStatus() == Status.CANCELLING ? Status.CANCELLED : Status.DONE);
+        setEndTime(System.currentTimeMillis());
+        lookupRequestsMadeForTerms = new HashMap<>();
+        notifyAll();
+    }
+
+
+    private void setStatus(Status status) {
+        this.status = status;
+    }
+
+
+    private long getStartTime() {
+        return startTime;
+    }
+
+
+    private long getEndTime() {
+        return endTime;
+    }
+
+
+    private void setEndTime(long endTime) {
+        this.endTime = endTime;
+    }
+
+
+    enum Status {
+        RUNNING, CANCELLING, CANCELLED, DONE
+    }
+}
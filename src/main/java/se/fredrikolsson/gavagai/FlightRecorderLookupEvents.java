@@ -0,0 +1,197 @@
+package se.fredrikolsson.gavagai;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * The Java Flight Recorder event types behind {@link se.fredrikolsson.gavagai.LookupEvents}. This class is only
+ * loaded when Flight Recorder is available. It needs the <code>jdk.jfr</code> API, and is therefore compiled
+ * separately from the rest of the code, see the <code>jfr</code> profile in pom.xml.
+ */
+final class FlightRecorderLookupEvents implements LookupEvents.Recorder {
+
+
+    @Override
+    public void requestEnqueued(LookupRequest request) {
+        RequestEnqueued event = new RequestEnqueued();
+        if (event.isEnabled()) {
+            event.set(request);
+            event.commit();
+        }
+    }
+
+
+    @Override
+    public void requestDequeued(LookupRequest request) {
+        RequestDequeued event = new RequestDequeued();
+        if (event.isEnabled()) {
+            event.set(request);
+            event.queueWait = request.getEnqueueTime() > 0 ? System.nanoTime() - request.getEnqueueTime() : 0;
+            event.commit();
+        }
+    }
+
+
+    @Override
+    public Object beginApiCall() {
+        ApiCall event = new ApiCall();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+
+    @Override
+    public void endApiCall(Object token, LookupRequest request, int httpStatus) {
+        ApiCall event = (ApiCall) token;
+        event.end();
+        event.set(request);
+        event.httpStatus = httpStatus;
+        event.commit();
+    }
+
+
+    @Override
+    public void requestRetried(LookupRequest request, String reason) {
+        RequestRetried event = new RequestRetried();
+        if (event.isEnabled()) {
+            event.set(request);
+            event.reason = reason;
+            event.commit();
+        }
+    }
+
+
+    @Override
+    public void responseQueued(LookupResponse response) {
+        ResponseQueued event = new ResponseQueued();
+        if (event.isEnabled()) {
+            event.set(response);
+            event.commit();
+        }
+    }
+
+
+    @Override
+    public void responseParsed(LookupResponse response, int numRequestsSpawned) {
+        ResponseParsed event = new ResponseParsed();
+        if (event.isEnabled()) {
+            event.set(response);
+            event.numRequestsSpawned = numRequestsSpawned;
+            event.commit();
+        }
+    }
+
+
+    @Override
+    public Object beginPersist() {
+        ResponsePersisted event = new ResponsePersisted();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+
+    @Override
+    public void endPersist(Object token, LookupResponse response) {
+        ResponsePersisted event = (ResponsePersisted) token;
+        event.end();
+        event.set(response);
+        event.commit();
+    }
+
+
+    @Category({"Gavagai Lexicon Graph", "Lookup"})
+    abstract static class LookupEvent extends Event {
+
+        @Label("Term")
+        String term;
+
+        @Label("Distance")
+        @Description("The distance of the looked up term from a starting term")
+        int distance;
+
+        @Label("Attempt")
+        @Description("The number of earlier failed attempts to look up the term")
+        int attempt;
+
+
+        void set(LookupRequest request) {
+            this.term = request.getTerm();
+            this.distance = request.getDistance();
+            this.attempt = request.getNumberOfLookupAttempts();
+        }
+
+
+        void set(LookupResponse response) {
+            this.term = response.getTargetTerm();
+            this.distance = response.getCurrentDistance() - 1;
+            this.attempt = response.getNumberOfLookupAttempts();
+        }
+    }
+
+
+    @Name("se.fredrikolsson.gavagai.RequestEnqueued")
+    @Label("Lookup Request Enqueued")
+    static class RequestEnqueued extends LookupEvent {
+    }
+
+
+    @Name("se.fredrikolsson.gavagai.RequestDequeued")
+    @Label("Lookup Request Dequeued")
+    static class RequestDequeued extends LookupEvent {
+
+        @Label("Queue Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        long queueWait;
+    }
+
+
+    @Name("se.fredrikolsson.gavagai.ApiCall")
+    @Label("Lexicon API Call")
+    static class ApiCall extends LookupEvent {
+
+        @Label("HTTP Status")
+        @Description("The HTTP status of the response, or -1 if no response was received")
+        int httpStatus;
+    }
+
+
+    @Name("se.fredrikolsson.gavagai.RequestRetried")
+    @Label("Lookup Request Retried")
+    static class RequestRetried extends LookupEvent {
+
+        @Label("Reason")
+        String reason;
+    }
+
+
+    @Name("se.fredrikolsson.gavagai.ResponseQueued")
+    @Label("Lookup Response Queued")
+    static class ResponseQueued extends LookupEvent {
+    }
+
+
+    @Name("se.fredrikolsson.gavagai.ResponseParsed")
+    @Label("Lookup Response Parsed")
+    static class ResponseParsed extends LookupEvent {
+
+        @Label("Requests Spawned")
+        int numRequestsSpawned;
+    }
+
+
+    @Name("se.fredrikolsson.gavagai.ResponsePersisted")
+    @Label("Lookup Response Persisted")
+    @Description("The duration is that of the transaction persisting the response")
+    static class ResponsePersisted extends LookupEvent {
+    }
+}
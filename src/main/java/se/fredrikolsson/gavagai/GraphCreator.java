@@ -1,11 +1,22 @@
 package se.fredrikolsson.gavagai;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mashape.unirest.http.Unirest;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 
 /**
@@ -21,15 +32,35 @@ class GraphCreator implements Stoppable {
     private final static int RESPONSE_QUEUE_SIZE = 1000;
     private final static int NUM_PRODUCER_THREADS = 100;
     private final static int DEFAULT_MAX_DISTANCE = 2;
+    private final static long DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    private final static long DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+    private final static int DEFAULT_NUM_ESTIMATE_SAMPLES = 20;
+    private final static long DEFAULT_KEY_COOLDOWN_SECONDS = 60;
+    private final static int RESPONSE_CACHE_SIZE = 10000;
+    private final static long RESPONSE_WORKER_SHUTDOWN_SECONDS = 60;
+    private final static String LANGUAGE_CODE_PATTERN = "[a-z]{2,3}";
 
     private final int maxDistance;
-    private final String apiKey;
+    private final ApiKeyPool apiKeyPool;
     private final String neo4jDbName;
     private final BlockingQueue<LookupRequest> lookupRequestQueue;
+    private final RequestBacklog requestBacklog;
     private final BlockingQueue<LookupResponse> lookupResponseQueue;
     private final ExecutorService lexiconLookupRequestWorkerExecutor;
     private final ExecutorService lexiconLookupResponseWorkerExecutor;
     private final ScheduledExecutorService stopperExecutor;
+    private final CrawlBudget crawlBudget;
+    private final HedgingPolicy hedgingPolicy;
+    private final StrengthCombination undirectedStrengthCombination;
+    private final StrengthBuckets strengthBuckets;
+    private final TermCanonicalizer termCanonicalizer;
+    private final LayerBarrier layerBarrier;
+    private final MemoryGovernor memoryGovernor;
+    private final SeedReader seedReader;
+    private final SnapshotLog snapshotLog;
+    private final Cache<String, JSONObject> responseCache;
+    private final boolean isDaemon;
+    private final Set<String> languageCodes;
 
     private boolean isRunning;
     private long startTime;
@@ -38,41 +69,320 @@ class GraphCreator implements Stoppable {
 
     public static void main(String[] args) throws Exception {
 
+        if (args.length > 0 && args[0].equals("serve")) {
+            NeighborhoodQueryService.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("merge")) {
+            GraphMerger.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("export")) {
+            GraphExporter.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("snapshot")) {
+            SnapshotReplayer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         OptionSet options = null;
         try {
-            options = new OptionParser("a:d:m:l:t:h").parse(args);
+            OptionParser parser = new OptionParser("a:d:m:l:t:T:k:c:w:n:o:r:e:h");
+            parser.accepts("estimate");
+            parser.accepts("samples").withRequiredArg();
+            parser.accepts("ring-buffer").withRequiredArg();
+            parser.accepts("undirected").withRequiredArg();
+            parser.accepts("strength-buckets").withRequiredArg();
+            parser.accepts("buckets-only");
+            parser.accepts("key-file").withRequiredArg();
+            parser.accepts("key-quota").withRequiredArg();
+            parser.accepts("key-cooldown").withRequiredArg();
+            parser.accepts("canonicalize").withRequiredArg();
+            parser.accepts("level-synchronous");
+            parser.accepts("heap-thresholds").withRequiredArg();
+            parser.accepts("daemon").withRequiredArg();
+            parser.accepts("snapshot").withRequiredArg();
+            options = parser.parse(args);
         } catch (Throwable t) {
             System.err.println("\nError: " + t.getMessage() + ". Exiting.\n");
             GraphCreator.printUsage();
             System.exit(1);
         }
 
-        if (options.has("h") || !(options.has("a") && options.has("d") && options.has("l") && options.has("t"))) {
+        boolean isDaemon = options.has("daemon");
+        if (options.has("h")
+                || !((options.has("a") || options.has("key-file"))
+                        && (options.has("t") || options.has("T") || isDaemon))
+                || !(options.has("d") || options.has("estimate"))
+                || (isDaemon && (options.has("estimate") || options.has("level-synchronous") || !options.has("l")))
+                || (options.has("T") && (options.has("estimate") || isDaemon || options.has("level-synchronous")
+                        || !options.has("l")))
+                || (options.has("snapshot") && options.has("estimate"))) {
+            GraphCreator.printUsage();
+            System.exit(1);
+        }
+
+        Map<String, Integer> languageWeights = null;
+        List<LookupRequest> startRequests = null;
+        double[] heapThresholds = null;
+        SnapshotLog snapshotLog = null;
+        try {
+            languageWeights = parseLanguageWeights((List<String>) options.valuesOf("l"));
+            if (!isDaemon) {
+                startRequests = createStartRequests((List<String>) options.valuesOf("t"), languageWeights);
+            }
+            heapThresholds = options.has("heap-thresholds")
+                    ? MemoryGovernor.parseThresholds((String) options.valueOf("heap-thresholds"))
+                    : new double[]{MemoryGovernor.DEFAULT_HIGH_OCCUPANCY, MemoryGovernor.DEFAULT_CRITICAL_OCCUPANCY};
+            if (options.has("snapshot")) {
+                snapshotLog = new SnapshotLog((String) options.valueOf("d"), (String) options.valueOf("snapshot"));
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("\nError: " + e.getMessage() + ". Exiting.\n");
             GraphCreator.printUsage();
             System.exit(1);
         }
 
+        List<String> apiKeys = new ArrayList<>();
+        for (String keys : (List<String>) options.valuesOf("a")) {
+            apiKeys.addAll(Arrays.asList(keys.split(",")));
+        }
+        if (options.has("key-file")) {
+            apiKeys.addAll(ApiKeyPool.readKeys((String) options.valueOf("key-file")));
+        }
+        ApiKeyPool apiKeyPool = new ApiKeyPool(
+                apiKeys,
+                options.has("key-quota") ? Long.valueOf((String) options.valueOf("key-quota")) : ApiKeyPool.UNLIMITED,
+                TimeUnit.SECONDS.toMillis(options.has("key-cooldown")
+                        ? Long.valueOf((String) options.valueOf("key-cooldown"))
+                        : DEFAULT_KEY_COOLDOWN_SECONDS));
+
+        TermCanonicalizer termCanonicalizer = options.has("canonicalize")
+                ? TermCanonicalizer.parse((String) options.valueOf("canonicalize"))
+                : TermCanonicalizer.none();
+
+        if (options.has("estimate")) {
+            LexiconApiClient.configure(
+                    options.has("o") ? Long.valueOf((String) options.valueOf("o")) : DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                    options.has("r") ? Long.valueOf((String) options.valueOf("r")) : DEFAULT_READ_TIMEOUT_MILLIS,
+                    NUM_PRODUCER_THREADS * 2);
+            for (String languageCode : languageWeights.keySet()) {
+                List<String> startTerms = new ArrayList<>();
+                for (LookupRequest request : startRequests) {
+                    if (request.getLanguageCode().equals(languageCode)) {
+                        startTerms.add(request.getTerm());
+                    }
+                }
+                new CrawlEstimator(
+                        apiKeyPool,
+                        languageCode,
+                        options.has("m") ? Integer.valueOf((String) options.valueOf("m")) : DEFAULT_MAX_DISTANCE,
+                        options.has("k") ? Integer.valueOf((String) options.valueOf("k")) : CrawlBudget.UNLIMITED,
+                        options.has("samples")
+                                ? Integer.valueOf((String) options.valueOf("samples"))
+                                : DEFAULT_NUM_ESTIMATE_SAMPLES,
+                        NUM_PRODUCER_THREADS,
+                        termCanonicalizer)
+                        .estimate(startTerms);
+            }
+            Unirest.shutdown();
+            return;
+        }
+
+        LayerBarrier layerBarrier = options.has("level-synchronous") ? new LayerBarrier() : null;
+        SeedReader seedReader = options.has("T")
+                ? new SeedReader((String) options.valueOf("T"), languageWeights.keySet())
+                : null;
+
+        int maxDistance = options.has("m") ? Integer.valueOf((String) options.valueOf("m")) : DEFAULT_MAX_DISTANCE;
+        int maxNeighborsPerTerm =
+                options.has("k") ? Integer.valueOf((String) options.valueOf("k")) : CrawlBudget.UNLIMITED;
+        long maxApiCalls = options.has("c") ? Long.valueOf((String) options.valueOf("c")) : CrawlBudget.UNLIMITED;
+        long maxRunningTimeSeconds =
+                options.has("w") ? Long.valueOf((String) options.valueOf("w")) : CrawlBudget.UNLIMITED;
+        long maxNodes = options.has("n") ? Long.valueOf((String) options.valueOf("n")) : CrawlBudget.UNLIMITED;
+
         GraphCreator populator = new GraphCreator(
-                (String) options.valueOf("a"),
+                apiKeyPool,
                 (String) options.valueOf("d"),
-                options.has("m") ? Integer.valueOf((String) options.valueOf("m")) : DEFAULT_MAX_DISTANCE);
+                languageWeights,
+                maxDistance,
+                // When running as a daemon, the limits apply to each job instead.
+                isDaemon
+                        ? new CrawlBudget(CrawlBudget.UNLIMITED, CrawlBudget.UNLIMITED, CrawlBudget.UNLIMITED,
+                                CrawlBudget.UNLIMITED)
+                        : new CrawlBudget(maxNeighborsPerTerm, maxApiCalls, maxRunningTimeSeconds, maxNodes),
+                new HedgingPolicy(options.has("e") ? Double.valueOf((String) options.valueOf("e")) : 0.0),
+                options.has("ring-buffer")
+                        ? RingBufferQueue.WaitStrategy.valueOf(
+                                ((String) options.valueOf("ring-buffer")).toUpperCase().replace('-', '_'))
+                        : null,
+                options.has("undirected")
+                        ? StrengthCombination.valueOf(((String) options.valueOf("undirected")).toUpperCase())
+                        : null,
+                options.has("strength-buckets")
+                        ? StrengthBuckets.parse((String) options.valueOf("strength-buckets"), options.has("buckets-only"))
+                        : null,
+                termCanonicalizer,
+                layerBarrier,
+                seedReader,
+                heapThresholds,
+                snapshotLog,
+                isDaemon);
+
+        LexiconApiClient.configure(
+                options.has("o") ? Long.valueOf((String) options.valueOf("o")) : DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                options.has("r") ? Long.valueOf((String) options.valueOf("r")) : DEFAULT_READ_TIMEOUT_MILLIS,
+                NUM_PRODUCER_THREADS * 2);
 
-        populator.start();
+        try {
+            populator.start();
+        } catch (IllegalStateException e) {
+            System.err.println("\nError: " + e.getMessage() + ". Exiting.\n");
+            System.exit(1);
+        }
         Runtime.getRuntime().addShutdownHook(new ShutDownHook(populator));
-        for (String term : (List<String>) options.valuesOf("t")) {
-            populator.addLookupRequest(new LookupRequest(term, (String) options.valueOf("l")));
+        if (isDaemon) {
+            CrawlDaemon daemon = new CrawlDaemon(populator, languageWeights.keySet(), maxDistance,
+                    maxNeighborsPerTerm, maxApiCalls, maxRunningTimeSeconds, maxNodes);
+            Runtime.getRuntime().addShutdownHook(new ShutDownHook(daemon));
+            daemon.start(Integer.valueOf((String) options.valueOf("daemon")));
+            if (options.has("t")) {
+                daemon.submit((List<String>) options.valuesOf("t"), languageWeights.keySet().iterator().next());
+            }
+        } else {
+            populator.addLookupRequests(startRequests);
+            if (seedReader != null) {
+                populator.readLookupRequests();
+            }
         }
         populator.awaitCompletion();
+        if (populator.hasFailed()) {
+            populator.awaitResponseWorker();
+            System.err.println("\nError: a layer of the crawl could not be written to the database. Exiting.\n");
+            System.exit(1);
+        }
         logger.info("Exiting main program");
     }
 
 
-    private GraphCreator(String apiKey, String neo4jDbName, int maxDistance) {
-        this.apiKey = apiKey;
+    /**
+     * Parses language codes given as <code>lang</code> or <code>lang:weight</code>, e.g. <code>en:2</code>.
+     *
+     * @return the weight of each language, by language code, in the order given.
+     */
+    private static Map<String, Integer> parseLanguageWeights(List<String> values) {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (String value : values) {
+            String[] parts = value.split(":");
+            if (!parts[0].matches(LANGUAGE_CODE_PATTERN) || parts.length > 2
+                    || (parts.length == 2 && !parts[1].matches("[1-9][0-9]*"))) {
+                throw new IllegalArgumentException("Expected a language code, optionally followed by :<weight>, got \""
+                        + value + "\"");
+            }
+            result.put(parts[0], parts.length == 2 ? Integer.valueOf(parts[1]) : 1);
+        }
+        return result;
+    }
+
+
+    /**
+     * Creates a lookup request for each starting term given as <code>term@lang</code>, and for each language
+     * given with -l for every other starting term. Languages only given with a starting term are added to the
+     * language weights, with weight 1.
+     */
+    static List<LookupRequest> createStartRequests(List<String> terms, Map<String, Integer> languageWeights) {
+        List<LookupRequest> result = new ArrayList<>();
+        Set<String> languageCodes = new LinkedHashSet<>(languageWeights.keySet());
+        for (String term : terms) {
+            int i = term.lastIndexOf('@');
+            if (i > 0 && term.substring(i + 1).matches(LANGUAGE_CODE_PATTERN)) {
+                String languageCode = term.substring(i + 1);
+                result.add(new LookupRequest(term.substring(0, i), languageCode));
+                if (!languageWeights.containsKey(languageCode)) {
+                    languageWeights.put(languageCode, 1);
+                }
+            } else if (languageCodes.isEmpty()) {
+                throw new IllegalArgumentException("No language given for the term \"" + term + "\"");
+            } else {
+                for (String languageCode : languageCodes) {
+                    result.add(new LookupRequest(term, languageCode));
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * @param languageWeights the languages to crawl, and the share of the lookups each of them should get when
+     *                        crawling several.
+     * @param responseQueueWaitStrategy if not null, responses are handed from the request workers to the response
+     *                                  worker through a {@link RingBufferQueue} using this wait strategy, rather
+     *                                  than through a {@link LinkedBlockingQueue}.
+     * @param undirectedStrengthCombination if not null, a single relationship is kept per pair of terms and
+     *                                      semantic label, with its strength combined from both directions in
+     *                                      this way.
+     * @param strengthBuckets if not null, relationships are also, or instead, written with a type telling their
+     *                        strength bucket.
+     * @param termCanonicalizer brings similar terms to their canonical form before they are looked up and stored.
+     * @param layerBarrier if not null, the crawl is level-synchronous: each distance layer is looked up and written
+     *                     in full before the lookups of the next one are requested.
+     * @param seedReader if not null, starting terms are also read from a file, and the crawl is not stopped
+     *                   before the whole file has been read.
+     * @param heapThresholds the high and critical occupancies of the old generation, above which the request
+     *                       workers are slowed down and paused, respectively.
+     * @param snapshotLog if not null, the changes to the neighbors of each term looked up are recorded in this log,
+     *                    tagged with its snapshot version.
+     * @param isDaemon if true, the graph creator keeps running when there are no lookups left, and lookups are
+     *                 cached to be shared by the jobs submitted to it.
+     */
+    private GraphCreator(ApiKeyPool apiKeyPool,
+                         String neo4jDbName,
+                         Map<String, Integer> languageWeights,
+                         int maxDistance,
+                         CrawlBudget crawlBudget,
+                         HedgingPolicy hedgingPolicy,
+                         RingBufferQueue.WaitStrategy responseQueueWaitStrategy,
+                         StrengthCombination undirectedStrengthCombination,
+                         StrengthBuckets strengthBuckets,
+                         TermCanonicalizer termCanonicalizer,
+                         LayerBarrier layerBarrier,
+                         SeedReader seedReader,
+                         double[] heapThresholds,
+                         SnapshotLog snapshotLog,
+                         boolean isDaemon) {
+        this.apiKeyPool = apiKeyPool;
+        this.crawlBudget = crawlBudget;
+        this.hedgingPolicy = hedgingPolicy;
+        this.undirectedStrengthCombination = undirectedStrengthCombination;
+        this.strengthBuckets = strengthBuckets;
+        this.termCanonicalizer = termCanonicalizer;
+        this.layerBarrier = layerBarrier;
+        this.seedReader = seedReader;
+        this.snapshotLog = snapshotLog;
         this.maxDistance = maxDistance;
         this.neo4jDbName = neo4jDbName;
-        this.lookupRequestQueue = new LinkedBlockingQueue<>(getRequestQueueSize());
-        this.lookupResponseQueue = new LinkedBlockingQueue<>(getResponseQueueSize());
+        this.languageCodes = languageWeights.keySet();
+        if (languageWeights.size() > 1) {
+            this.lookupRequestQueue = new LanguageFairQueue(getRequestQueueSize(), languageWeights);
+        } else {
+            this.lookupRequestQueue = new LinkedBlockingQueue<>(getRequestQueueSize());
+        }
+        this.requestBacklog = new RequestBacklog(getLookupRequestQueue(), layerBarrier);
+        if (responseQueueWaitStrategy != null) {
+            this.lookupResponseQueue = new RingBufferQueue<>(getResponseQueueSize(), responseQueueWaitStrategy);
+        } else {
+            this.lookupResponseQueue = new LinkedBlockingQueue<>(getResponseQueueSize());
+        }
+        this.memoryGovernor = new MemoryGovernor(heapThresholds[0], heapThresholds[1], getLookupResponseQueue());
+        this.isDaemon = isDaemon;
+        if (isDaemon) {
+            this.responseCache = CacheBuilder.newBuilder().maximumSize(RESPONSE_CACHE_SIZE).build();
+        } else {
+            this.responseCache = null;
+        }
         this.lexiconLookupRequestWorkerExecutor =
                 new ThreadPoolExecutor(
                         NUM_PRODUCER_THREADS,
@@ -86,24 +396,46 @@ class GraphCreator implements Stoppable {
     }
 
 
-    private void start() {
+    private void start() throws IOException {
         logger.info("Starting Graph Creator");
         setStartTime(System.currentTimeMillis());
-        startLexiconLookupRequestWorkers(getNumProducerThreads(), getLexiconLookupRequestWorkerExecutor());
-        logger.info("Starting a single Lexicon Lookup Response Worker");
-
+        getMemoryGovernor().addCacheShrinker(new Runnable() {
+            @Override
+            public void run() {
+                getTermCanonicalizer().clearCache();
+                if (getResponseCache() != null) {
+                    getResponseCache().invalidateAll();
+                }
+            }
+        });
+        // The database is set up before any worker is started, so that a crawl it cannot take is refused cleanly.
         LexiconLookupResponseWorker responseWorker =
                 new LexiconLookupResponseWorker(
-                        getLookupRequestQueue(),
+                        getRequestBacklog(),
                         getLookupResponseQueue(),
                         getMaxDistance(),
-                        getNeo4jDbName());
+                        getNeo4jDbName(),
+                        getLanguageCodes(),
+                        getCrawlBudget(),
+                        getUndirectedStrengthCombination(),
+                        getStrengthBuckets(),
+                        getTermCanonicalizer(),
+                        getLayerBarrier(),
+                        getSnapshotLog());
         responseWorker.init();
+
+        getMemoryGovernor().start();
+        startLexiconLookupRequestWorkers(getNumProducerThreads(), getLexiconLookupRequestWorkerExecutor());
+        logger.info("Starting a single Lexicon Lookup Response Worker");
         setResponseWorker(responseWorker);
         getLexiconLookupResponseWorkerExecutor().execute(responseWorker);
 
-        logger.info("Starting the Stopper watchdog");
-        getStopperExecutor().scheduleAtFixedRate(new Stopper(this, getLookupRequestQueue()), 120, 60, TimeUnit.SECONDS);
+        if (!isDaemon()) {
+            logger.info("Starting the Stopper watchdog");
+            getStopperExecutor().scheduleAtFixedRate(new Stopper(
+                    this, getLookupRequestQueue(), getRequestBacklog(), getLayerBarrier(), getSeedReader()),
+                    120, 60, TimeUnit.SECONDS);
+        }
 
         setRunning(true);
     }
@@ -122,8 +454,38 @@ class GraphCreator implements Stoppable {
     }
 
 
+    /**
+     * Returns true if the crawl was stopped because a layer could not be written.
+     */
+    private boolean hasFailed() {
+        return getLayerBarrier() != null && getLayerBarrier().hasFailed();
+    }
+
+
+    /**
+     * Waits for the response worker to shut the database down, once stopped.
+     */
+    private void awaitResponseWorker() throws InterruptedException {
+        getLexiconLookupResponseWorkerExecutor().awaitTermination(RESPONSE_WORKER_SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+    }
+
+
     private void logStatistics() {
         logger.info(getResponseWorker().getStatisticsMessage(false));
+        logger.info("Made {} calls to the Lexicon API", getCrawlBudget().getNumApiCalls());
+        logger.info(getApiKeyPool().getStatisticsMessage());
+        if (getHedgingPolicy().isEnabled()) {
+            logger.info(getHedgingPolicy().getStatisticsMessage());
+        }
+        if (getMemoryGovernor().hasIntervened()) {
+            logger.info(getMemoryGovernor().getStatisticsMessage());
+        }
+        if (getSnapshotLog() != null) {
+            logger.info(getSnapshotLog().getStatisticsMessage());
+        }
+        if (getCrawlBudget().isExhausted()) {
+            logger.info("Crawl was limited by its budget: {}", getCrawlBudget().getExhaustionReason());
+        }
         long runningTime = System.currentTimeMillis() - getStartTime();
         logger.info(String.format("Total running time: %d min, %d sec",
                 TimeUnit.MILLISECONDS.toMinutes(runningTime),
@@ -133,25 +495,149 @@ class GraphCreator implements Stoppable {
     }
 
 
-    private void addLookupRequest(LookupRequest request) {
+    /**
+     * Queues lookup requests, waiting for room in the queue as needed.
+     */
+    void addLookupRequests(List<LookupRequest> requests) throws InterruptedException {
+        if (getLayerBarrier() != null) {
+            getLayerBarrier().lookupsIssued(requests.size());
+        }
+        for (LookupRequest request : requests) {
+            addLookupRequest(request);
+        }
+    }
+
+
+    /**
+     * Queues a lookup request if there is room for it, without waiting. Only for crawls that are not level
+     * synchronous.
+     *
+     * @return false if the request queue is full.
+     */
+    boolean offerLookupRequest(LookupRequest request) {
+        LookupEvents.requestEnqueued(request);
+        if (!getLookupRequestQueue().offer(request)) {
+            return false;
+        }
         logger.info("Adding term to lookup in Gavagai Living Lexicon: \"{}\"", request.getTerm());
-        getLookupRequestQueue().add(request);
+        return true;
+    }
+
+
+    private void addLookupRequest(LookupRequest request) throws InterruptedException {
+        logger.info("Adding term to lookup in Gavagai Living Lexicon: \"{}\"", request.getTerm());
+        LookupEvents.requestEnqueued(request);
+        getLookupRequestQueue().put(request);
+    }
+
+
+    private void readLookupRequests() throws IOException, InterruptedException {
+        getSeedReader().read(getRequestBacklog());
     }
 
 
     private static void printUsage() {
         String s = "Usage:\n" +
-                "  -a <apiKey> -d <dBDir> -l <lang> -t <term> (-m <maxDistance>)\n" +
-                "  -h\n\n" +
-                "where  -a <apiKey> is your Gavagai API key, obtained from gavagai.se\n" +
+                "  -a <apiKey> -d <dBDir> -l <lang> (-t <term>) (-T <file>) (-m <maxDistance>) (-k <topK>)\n" +
+                "     (-c <maxCalls>) (-w <maxSeconds>) (-n <maxNodes>) (-o <connectTimeout>) (-r <readTimeout>)\n" +
+                "     (-e <hedgeRatio>) (--ring-buffer <waitStrategy>) (--undirected <combination>)\n" +
+                "     (--strength-buckets <strong>,<medium> (--buckets-only))\n" +
+                "     (--key-file <file>) (--key-quota <calls>) (--key-cooldown <secs>) (--canonicalize <steps>)\n" +
+                "     (--level-synchronous) (--heap-thresholds <high>,<critical>) (--snapshot <version>)\n" +
+                "  -a <apiKey> -l <lang> -t <term> --estimate (--samples <num>) (-m <maxDistance>) (-k <topK>)\n" +
+                "  -a <apiKey> -d <dBDir> -l <lang> --daemon <port> (-t <term>) (other options as above)\n" +
+                "  -h\n" +
+                "  serve -h\n" +
+                "  merge -h\n" +
+                "  export -h\n" +
+                "  snapshot -h\n\n" +
+                "where  -a <apiKey> is your Gavagai API key, obtained from gavagai.se. This option can be\n" +
+                "                   specified multiple times, or with comma separated keys, to spread the lookups\n" +
+                "                   over several keys\n" +
                 "       -d <dBDir>  is the empty directory in which to store the resulting Neo4j graph database\n" +
                 "       -l <lang>   is the iso 639-1 two character code for the langugage to look up. Check\n" +
-                "                   http://lexicon.gavagai.se for available languages\n" +
+                "                   http://lexicon.gavagai.se for available languages. This option can be\n" +
+                "                   specified multiple times to crawl several languages into the same graph,\n" +
+                "                   optionally with a weight, e.g. en:2, giving a language a larger share of the\n" +
+                "                   lookups. Terms are then told apart by their language\n" +
                 "       -t <term>   is the term from which you wish to start your graph. This option can be\n" +
-                "                   specified multiple times to generate a graph with many starting terms\n" +
+                "                   specified multiple times to generate a graph with many starting terms. The\n" +
+                "                   term is looked up in every language given by -l, or, if given as term@lang,\n" +
+                "                   in that language only\n" +
+                "       -T <file>   is a file of starting terms, or - to read them from standard input. Each\n" +
+                "                   line holds a term, optionally followed by a tab and one of the languages\n" +
+                "                   given by -l, and by another tab and the distance to start the term at.\n" +
+                "                   Terms are read as the request queue has room for them. Can be combined\n" +
+                "                   with -t, but not with --level-synchronous\n" +
                 "       -m <dist>   is the maximum distance, in the graph, allowed from a starting term before\n" +
                 "                   the program terminates. Optional. Default value is " + DEFAULT_MAX_DISTANCE + "\n" +
-                "       -h          prints this usage information\n";
+                "       -k <topK>   is the number of strongest neighbors of each term to expand further. Optional.\n" +
+                "                   Default is to expand all neighbors\n" +
+                "       -c <calls>  is the maximum number of calls to make to the Lexicon API. Optional. Default\n" +
+                "                   is unlimited\n" +
+                "       -w <secs>   is the maximum number of seconds to spend on new lookups. Optional. Default\n" +
+                "                   is unlimited\n" +
+                "       -n <nodes>  is the maximum number of terms in the graph before expansion stops. Optional.\n" +
+                "                   Default is unlimited\n" +
+                "       -o <ms>     is the connect timeout for calls to the Lexicon API, in milliseconds. Optional.\n" +
+                "                   Default value is " + DEFAULT_CONNECT_TIMEOUT_MILLIS + "\n" +
+                "       -r <ms>     is the read timeout for calls to the Lexicon API, in milliseconds. Optional.\n" +
+                "                   Default value is " + DEFAULT_READ_TIMEOUT_MILLIS + "\n" +
+                "       -e <ratio>  is the maximum fraction, e.g. 0.05, of lookups that may be hedged by a second\n" +
+                "                   request when slower than the 95th percentile of observed latencies. Optional.\n" +
+                "                   Hedges count against -c. Default is no hedging\n" +
+                "       --ring-buffer <waitStrategy> hands responses from the request workers to the database\n" +
+                "                   writer through a lock-free ring buffer instead of a linked blocking queue.\n" +
+                "                   The wait strategy is one of busy-spin, yielding, sleeping or blocking.\n" +
+                "                   Optional\n" +
+                "       --undirected <combination> keeps a single relationship per pair of terms and semantic\n" +
+                "                   label, recording the strength seen from each term as sourceStrength and\n" +
+                "                   targetStrength, and their combination, one of max, mean or min, as strength.\n" +
+                "                   Optional. Default is to keep the strength seen from the first term looked up\n" +
+                "       --strength-buckets <strong>,<medium> also writes each relationship with the type\n" +
+                "                   NEIGHBOR_STRONG, NEIGHBOR_MEDIUM or NEIGHBOR_WEAK, by comparing its strength to\n" +
+                "                   the given cut-offs, e.g. 0.5,0.3. Optional\n" +
+                "       --buckets-only writes the strength bucket relationships instead of NEIGHBOR ones.\n" +
+                "                   Optional\n" +
+                "       --key-file <file> is a file holding additional API keys, one per line. Can be used\n" +
+                "                   instead of -a\n" +
+                "       --key-quota <calls> is the maximum number of calls to make with each API key. Lookups\n" +
+                "                   go to the key with the most calls left. Optional. Default is unlimited\n" +
+                "       --key-cooldown <secs> is the time an API key is taken out of rotation when rate limited\n" +
+                "                   by the API, doubled on each consecutive rate limiting. Optional. Default value\n" +
+                "                   is " + DEFAULT_KEY_COOLDOWN_SECONDS + "\n" +
+                "       --canonicalize <steps> brings similar terms to the same form before they are looked\n" +
+                "                   up and stored. The steps are a comma separated list of nfc (Unicode\n" +
+                "                   normalization), case (lower-casing) and whitespace (trimming and collapsing\n" +
+                "                   whitespace to single spaces). Optional. Default is to keep terms as they are\n" +
+                "       --level-synchronous looks up all terms at one distance, and writes them to the graph\n" +
+                "                   database in one transaction, before looking up the terms at the next\n" +
+                "                   distance. Each term gets its exact minimum distance from the starting terms\n" +
+                "                   as its distance property. Optional\n" +
+                "       --heap-thresholds <high>,<critical> are the shares of the old generation in use after\n" +
+                "                   garbage collection above which lookups are slowed down and paused, so that\n" +
+                "                   the response worker can catch up. Optional. Default value is " +
+                MemoryGovernor.DEFAULT_HIGH_OCCUPANCY + "," + MemoryGovernor.DEFAULT_CRITICAL_OCCUPANCY + "\n" +
+                "       --snapshot <version> tags the crawl as a snapshot version, e.g. 2018-05-01, and records\n" +
+                "                   how the neighbors of each term looked up have changed since the term was\n" +
+                "                   last looked up, in a delta log in <dBDir>. Optional\n" +
+                "       --estimate  samples the neighborhoods of the starting terms to estimate the number of\n" +
+                "                   terms, lookups and running time of a crawl with the given maximum distance,\n" +
+                "                   without building a graph database\n" +
+                "       --samples <num> is the number of terms to sample at each distance when estimating.\n" +
+                "                   Optional. Default value is " + DEFAULT_NUM_ESTIMATE_SAMPLES + "\n" +
+                "       --daemon <port> keeps running, with the graph database open, and accepts crawl jobs on\n" +
+                "                   http://localhost:<port>/jobs. -m, -k, -c, -w and -n are the defaults for each\n" +
+                "                   job, and starting terms given with -t are submitted as the first job\n" +
+                "       -h          prints this usage information\n\n" +
+                "Use serve to answer neighborhood queries over an existing graph database through a local\n" +
+                "HTTP/JSON API. Invoke with serve -h for more information.\n" +
+                "Use merge to combine graph databases built by separate runs into a new one. Invoke with\n" +
+                "merge -h for more information.\n" +
+                "Use export to write the terms and relationships of a graph database to CSV, JSON Lines or\n" +
+                "GraphML files. Invoke with export -h for more information.\n" +
+                "Use snapshot to rebuild the neighborhoods of terms as they were at an earlier snapshot\n" +
+                "version. Invoke with snapshot -h for more information.\n";
 
         System.out.println(s);
     }
@@ -162,8 +648,8 @@ class GraphCreator implements Stoppable {
     }
 
 
-    private String getApiKey() {
-        return apiKey;
+    private ApiKeyPool getApiKeyPool() {
+        return apiKeyPool;
     }
 
 
@@ -172,6 +658,11 @@ class GraphCreator implements Stoppable {
     }
 
 
+    private RequestBacklog getRequestBacklog() {
+        return requestBacklog;
+    }
+
+
     private BlockingQueue<LookupResponse> getLookupResponseQueue() {
         return lookupResponseQueue;
     }
@@ -192,6 +683,66 @@ class GraphCreator implements Stoppable {
     }
 
 
+    private CrawlBudget getCrawlBudget() {
+        return crawlBudget;
+    }
+
+
+    private HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+
+    private StrengthCombination getUndirectedStrengthCombination() {
+        return undirectedStrengthCombination;
+    }
+
+
+    private StrengthBuckets getStrengthBuckets() {
+        return strengthBuckets;
+    }
+
+
+    private TermCanonicalizer getTermCanonicalizer() {
+        return termCanonicalizer;
+    }
+
+
+    private LayerBarrier getLayerBarrier() {
+        return layerBarrier;
+    }
+
+
+    private MemoryGovernor getMemoryGovernor() {
+        return memoryGovernor;
+    }
+
+
+    private SnapshotLog getSnapshotLog() {
+        return snapshotLog;
+    }
+
+
+    private SeedReader getSeedReader() {
+        return seedReader;
+    }
+
+
+    private Cache<String, JSONObject> getResponseCache() {
+        return responseCache;
+    }
+
+
+    private boolean isDaemon() {
+        return isDaemon;
+    }
+
+
+    private Set<String> getLanguageCodes() {
+        return languageCodes;
+    }
+
+
     private int getMaxDistance() {
         return maxDistance;
     }
@@ -246,7 +797,16 @@ class GraphCreator implements Stoppable {
         logger.info("Starting {} Lexicon Lookup Request Workers", numThreads);
         for (int i = 0; i < numThreads; i++) {
             service.execute(
-                    new LexiconLookupRequestWorker(getLookupRequestQueue(), getLookupResponseQueue(), getApiKey()));
+                    new LexiconLookupRequestWorker(
+                            getLookupRequestQueue(),
+                            getLookupResponseQueue(),
+                            getApiKeyPool(),
+                            getCrawlBudget(),
+                            getHedgingPolicy(),
+                            getLayerBarrier(),
+                            getRequestBacklog(),
+                            getMemoryGovernor(),
+                            getResponseCache()));
         }
     }
 
@@ -261,6 +821,7 @@ class GraphCreator implements Stoppable {
             }
             getLexiconLookupResponseWorkerExecutor().shutdownNow();
             getStopperExecutor().shutdownNow();
+            getMemoryGovernor().stop();
             logStatistics();
         }
     }
@@ -272,7 +833,7 @@ class GraphCreator implements Stoppable {
     }
 
 
-    private static class ShutDownHook extends Thread {
+    static class ShutDownHook extends Thread {
         private final Stoppable stoppable;
 
         ShutDownHook(Stoppable stoppable) {
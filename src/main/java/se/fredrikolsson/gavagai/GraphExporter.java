@@ -0,0 +1,553 @@
+package se.fredrikolsson.gavagai;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Class responsible for exporting the terms and relationships of a graph database built by
+ * {@link se.fredrikolsson.gavagai.GraphCreator} to CSV, JSON Lines or GraphML files.
+ * <p>
+ * The database is opened read-only and scanned directly, without Cypher. After a first pass to find the highest
+ * node id, the node id space is split into ranges that are exported in parallel, each range to its own part file, so
+ * that memory use does not depend on the size of the graph. Every relationship is exported once, with the range of
+ * its start node, except for strength bucket copies of NEIGHBOR relationships, which are left out. For CSV and
+ * JSON Lines, the part files are left as they are, ready to be consumed by tools that read directories of parts.
+ * For GraphML, the parts are concatenated into a single document.
+ * <p>
+ * Invoke {@link se.fredrikolsson.gavagai.GraphCreator} with <code>export -h</code> to see usage information.
+ */
+class GraphExporter {
+
+    private static Logger logger = LoggerFactory.getLogger(GraphExporter.class);
+
+    private final static int PARTITIONS_PER_THREAD = 4;
+    private final static String[] NODE_PROPERTIES =
+            {"name", "numTokens", "frequency", "documentFrequency", "absoluteRank", "relativeRank", "language"};
+    private final static String[] RELATIONSHIP_PROPERTIES = {"strength", "sourceStrength", "targetStrength"};
+
+    private final GraphDatabaseService neo4jDb;
+    private final File outputDir;
+    private final Format format;
+    private final boolean isCompressed;
+    private final int numThreads;
+    private final Map<Integer, String> semanticLabels;
+    private final AtomicLong numNodesExported = new AtomicLong();
+    private final AtomicLong numRelationshipsExported = new AtomicLong();
+
+
+    static void main(String[] args) throws Exception {
+
+        OptionSet options = null;
+        try {
+            options = new OptionParser("d:o:f:p:zh").parse(args);
+        } catch (Throwable t) {
+            System.err.println("\nError: " + t.getMessage() + ". Exiting.\n");
+            GraphExporter.printUsage();
+            System.exit(1);
+        }
+
+        if (options.has("h") || !(options.has("d") && options.has("o"))) {
+            GraphExporter.printUsage();
+            System.exit(1);
+        }
+
+        GraphExporter exporter = new GraphExporter(
+                (String) options.valueOf("d"),
+                (String) options.valueOf("o"),
+                options.has("f") ? Format.valueOf(((String) options.valueOf("f")).toUpperCase()) : Format.CSV,
+                options.has("z"),
+                options.has("p")
+                        ? Integer.valueOf((String) options.valueOf("p"))
+                        : Runtime.getRuntime().availableProcessors());
+        try {
+            exporter.export();
+        } finally {
+            exporter.shutDown();
+        }
+    }
+
+
+    private GraphExporter(String neo4jDbName, String outputDirName, Format format, boolean isCompressed,
+                          int numThreads) {
+        this.neo4jDb = new GraphDatabaseFactory()
+                .newEmbeddedDatabaseBuilder(new File(neo4jDbName))
+                .setConfig(GraphDatabaseSettings.read_only, "true")
+                .newGraphDatabase();
+        this.outputDir = new File(outputDirName);
+        this.format = format;
+        this.isCompressed = isCompressed;
+        this.numThreads = numThreads;
+        this.semanticLabels = new HashMap<>();
+    }
+
+
+    private void export() throws Exception {
+        long startTime = System.currentTimeMillis();
+        if (!getOutputDir().isDirectory() && !getOutputDir().mkdirs()) {
+            throw new IOException("Could not create output directory: " + getOutputDir());
+        }
+        loadSemanticLabels();
+
+        long highId = getHighNodeId();
+        int numPartitions = getNumThreads() * PARTITIONS_PER_THREAD;
+        long partitionSize = Math.max(1, (highId + numPartitions - 1) / numPartitions);
+        logger.info("Exporting node ids 0 to {} as {} in {} partitions using {} threads",
+                highId, getFormat(), numPartitions, getNumThreads());
+
+        ExecutorService executor = Executors.newFixedThreadPool(getNumThreads(), new NamingThreadFactory("exporter"));
+        List<Future<File[]>> partitions = new ArrayList<>();
+        try {
+            for (int i = 0; i < numPartitions; i++) {
+                long fromId = i * partitionSize;
+                partitions.add(executor.submit(new PartitionExporter(
+                        i, fromId, Math.min(highId, fromId + partitionSize))));
+            }
+            List<File> nodeParts = new ArrayList<>();
+            List<File> relationshipParts = new ArrayList<>();
+            for (Future<File[]> partition : partitions) {
+                File[] parts = partition.get();
+                nodeParts.add(parts[0]);
+                relationshipParts.add(parts[1]);
+            }
+            if (getFormat() == Format.GRAPHML) {
+                concatenateGraphMl(nodeParts, relationshipParts);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long runningTime = System.currentTimeMillis() - startTime;
+        logger.info(String.format("Exported %d terms and %d relationships to %s in %d min, %d sec",
+                getNumNodesExported().get(),
+                getNumRelationshipsExported().get(),
+                getOutputDir(),
+                TimeUnit.MILLISECONDS.toMinutes(runningTime),
+                TimeUnit.MILLISECONDS.toSeconds(runningTime) -
+                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(runningTime))
+        ));
+    }
+
+
+    /**
+     * Returns one more than the highest node id in use, found by a pass over all nodes. Only the ids are read,
+     * which is much cheaper than the export itself, and keeps to the public API of Neo4j.
+     */
+    private long getHighNodeId() {
+        long result = 0;
+        try (Transaction tx = getNeo4jDb().beginTx();
+             ResourceIterator<Node> nodes = getNeo4jDb().getAllNodes().iterator()) {
+            while (nodes.hasNext()) {
+                result = Math.max(result, nodes.next().getId() + 1);
+            }
+            tx.success();
+        }
+        return result;
+    }
+
+
+    private void loadSemanticLabels() {
+        try (Transaction tx = getNeo4jDb().beginTx()) {
+            try (ResourceIterator<Node> nodes =
+                         getNeo4jDb().findNodes(SemanticLabelDictionary.DictionaryLabel.SEMANTIC_LABEL)) {
+                while (nodes.hasNext()) {
+                    Node node = nodes.next();
+                    getSemanticLabels().put((Integer) node.getProperty(SemanticLabelDictionary.ID_PROPERTY),
+                            (String) node.getProperty(SemanticLabelDictionary.NAME_PROPERTY));
+                }
+            }
+            tx.success();
+        }
+    }
+
+
+    /**
+     * Writes a single GraphML document consisting of a header, all node parts, all relationship parts and a
+     * footer. Since concatenated gzip members form a valid gzip file, compressed parts are copied as they are.
+     */
+    private void concatenateGraphMl(List<File> nodeParts, List<File> relationshipParts) throws IOException {
+        File header = new File(getOutputDir(), "header" + getFileSuffix());
+        try (Writer writer = openWriter(header)) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">\n");
+            writer.write("  <key id=\"name\" for=\"node\" attr.name=\"name\" attr.type=\"string\"/>\n");
+            writer.write("  <key id=\"numTokens\" for=\"node\" attr.name=\"numTokens\" attr.type=\"int\"/>\n");
+            writer.write("  <key id=\"frequency\" for=\"node\" attr.name=\"frequency\" attr.type=\"int\"/>\n");
+            writer.write("  <key id=\"documentFrequency\" for=\"node\" attr.name=\"documentFrequency\" attr.type=\"int\"/>\n");
+            writer.write("  <key id=\"absoluteRank\" for=\"node\" attr.name=\"absoluteRank\" attr.type=\"int\"/>\n");
+            writer.write("  <key id=\"relativeRank\" for=\"node\" attr.name=\"relativeRank\" attr.type=\"double\"/>\n");
+            writer.write("  <key id=\"language\" for=\"node\" attr.name=\"language\" attr.type=\"string\"/>\n");
+            writer.write("  <key id=\"type\" for=\"edge\" attr.name=\"type\" attr.type=\"string\"/>\n");
+            writer.write("  <key id=\"semanticLabel\" for=\"edge\" attr.name=\"semanticLabel\" attr.type=\"string\"/>\n");
+            writer.write("  <key id=\"strength\" for=\"edge\" attr.name=\"strength\" attr.type=\"double\"/>\n");
+            writer.write("  <key id=\"sourceStrength\" for=\"edge\" attr.name=\"sourceStrength\" attr.type=\"double\"/>\n");
+            writer.write("  <key id=\"targetStrength\" for=\"edge\" attr.name=\"targetStrength\" attr.type=\"double\"/>\n");
+            writer.write("  <graph id=\"lexicon\" edgedefault=\"directed\">\n");
+        }
+        File footer = new File(getOutputDir(), "footer" + getFileSuffix());
+        try (Writer writer = openWriter(footer)) {
+            writer.write("  </graph>\n</graphml>\n");
+        }
+
+        List<File> parts = new ArrayList<>();
+        parts.add(header);
+        parts.addAll(nodeParts);
+        parts.addAll(relationshipParts);
+        parts.add(footer);
+        File result = new File(getOutputDir(), "graph" + getFileSuffix());
+        byte[] buffer = new byte[1 << 16];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(result))) {
+            for (File part : parts) {
+                try (InputStream in = new FileInputStream(part)) {
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, n);
+                    }
+                }
+                if (!part.delete()) {
+                    logger.warn("Could not delete part file {}", part);
+                }
+            }
+        }
+    }
+
+
+    private Writer openWriter(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (isCompressed()) {
+            out = new GZIPOutputStream(out, 1 << 16);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+    }
+
+
+    private String getFileSuffix() {
+        return "." + getFormat().getExtension() + (isCompressed() ? ".gz" : "");
+    }
+
+
+    private static void printUsage() {
+        String s = "Usage:\n" +
+                "  export -d <dBDir> -o <outDir> (-f <format>) (-p <threads>) (-z)\n" +
+                "  export -h\n\n" +
+                "where  -d <dBDir>  is the directory holding a Neo4j graph database built by this program\n" +
+                "       -o <outDir> is the directory in which to write the exported files\n" +
+                "       -f <format> is one of csv, jsonl or graphml. Optional. Default value is csv\n" +
+                "       -p <num>    is the number of threads to export with. Optional. Default value is the\n" +
+                "                   number of available processors\n" +
+                "       -z          compresses the exported files with gzip. Optional\n" +
+                "       -h          prints this usage information\n";
+
+        System.out.println(s);
+    }
+
+
+    private void shutDown() {
+        getNeo4jDb().shutdown();
+    }
+
+
+    private static String escapeCsv(Object value) {
+        if (value == null) {
+            return "";
+        }
+        String s = value.toString();
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+            return s;
+        }
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+
+    private static String escapeXml(Object value) {
+        StringBuilder s = new StringBuilder();
+        String v = value.toString();
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            switch (c) {
+                case '&':
+                    s.append("&amp;");
+                    break;
+                case '<':
+                    s.append("&lt;");
+                    break;
+                case '>':
+                    s.append("&gt;");
+                    break;
+                case '"':
+                    s.append("&quot;");
+                    break;
+                default:
+                    s.append(c);
+            }
+        }
+        return s.toString();
+    }
+
+
+    private GraphDatabaseService getNeo4jDb() {
+        return neo4jDb;
+    }
+
+
+    private File getOutputDir() {
+        return outputDir;
+    }
+
+
+    private Format getFormat() {
+        return format;
+    }
+
+
+    private boolean isCompressed() {
+        return isCompressed;
+    }
+
+
+    private int getNumThreads() {
+        return numThreads;
+    }
+
+
+    private Map<Integer, String> getSemanticLabels() {
+        return semanticLabels;
+    }
+
+
+    private AtomicLong getNumNodesExported() {
+        return numNodesExported;
+    }
+
+
+    private AtomicLong getNumRelationshipsExported() {
+        return numRelationshipsExported;
+    }
+
+
+    private enum Format {
+        CSV("csv"), JSONL("jsonl"), GRAPHML("graphml");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        String getExtension() {
+            return extension;
+        }
+    }
+
+
+    /**
+     * Exports the TERM nodes within a range of node ids, and their outgoing relationships, to one node part file
+     * and one relationship part file.
+     */
+    private class PartitionExporter implements Callable<File[]> {
+
+        private final int partition;
+        private final long fromId;
+        private final long toId;
+
+
+        PartitionExporter(int partition, long fromId, long toId) {
+            this.partition = partition;
+            this.fromId = fromId;
+            this.toId = toId;
+        }
+
+
+        @Override
+        public File[] call() throws IOException, JSONException {
+            File nodeFile = new File(getOutputDir(), String.format("terms-%05d%s", partition, getFileSuffix()));
+            File relationshipFile =
+                    new File(getOutputDir(), String.format("neighbors-%05d%s", partition, getFileSuffix()));
+            long numNodes = 0;
+            long numRelationships = 0;
+            try (Writer nodes = openWriter(nodeFile);
+                 Writer relationships = openWriter(relationshipFile);
+                 Transaction tx = getNeo4jDb().beginTx()) {
+
+                if (getFormat() == Format.CSV) {
+                    nodes.write("id," + join(NODE_PROPERTIES) + "\n");
+                    relationships.write("source,target,sourceName,targetName,type,semanticLabel,"
+                            + join(RELATIONSHIP_PROPERTIES) + "\n");
+                }
+                for (long id = fromId; id < toId; id++) {
+                    Node node;
+                    try {
+                        node = getNeo4jDb().getNodeById(id);
+                    } catch (NotFoundException e) {
+                        continue;
+                    }
+                    if (!node.hasLabel(LexiconLookupResponseWorker.TermLabel.TERM)) {
+                        continue;
+                    }
+                    writeNode(nodes, node);
+                    numNodes++;
+                    Set<String> neighborKeys = new HashSet<>();
+                    for (Relationship relationship : node.getRelationships(
+                            Direction.OUTGOING, LexiconLookupResponseWorker.TermRelation.NEIGHBOR)) {
+                        neighborKeys.add(getNeighborKey(relationship));
+                    }
+                    for (Relationship relationship : node.getRelationships(Direction.OUTGOING)) {
+                        if (!relationship.isType(LexiconLookupResponseWorker.TermRelation.NEIGHBOR)
+                                && neighborKeys.contains(getNeighborKey(relationship))) {
+                            // A strength bucket copy of a NEIGHBOR relationship, written with --strength-buckets.
+                            continue;
+                        }
+                        writeRelationship(relationships, relationship);
+                        numRelationships++;
+                    }
+                }
+                tx.success();
+            }
+            getNumNodesExported().addAndGet(numNodes);
+            getNumRelationshipsExported().addAndGet(numRelationships);
+            logger.debug("Exported {} terms and {} relationships from node ids {} to {}",
+                    numNodes, numRelationships, fromId, toId);
+            return new File[]{nodeFile, relationshipFile};
+        }
+
+
+        private void writeNode(Writer out, Node node) throws IOException, JSONException {
+            switch (getFormat()) {
+                case CSV:
+                    out.write(Long.toString(node.getId()));
+                    for (String property : NODE_PROPERTIES) {
+                        out.write(',');
+                        out.write(escapeCsv(node.getProperty(property, null)));
+                    }
+                    out.write('\n');
+                    break;
+                case JSONL:
+                    JSONObject json = new JSONObject(node.getAllProperties());
+                    json.put("id", node.getId());
+                    out.write(json.toString());
+                    out.write('\n');
+                    break;
+                case GRAPHML:
+                    out.write("    <node id=\"n" + node.getId() + "\">");
+                    for (String property : NODE_PROPERTIES) {
+                        if (node.hasProperty(property)) {
+                            out.write("<data key=\"" + property + "\">"
+                                    + escapeXml(node.getProperty(property)) + "</data>");
+                        }
+                    }
+                    out.write("</node>\n");
+                    break;
+            }
+        }
+
+
+        private void writeRelationship(Writer out, Relationship relationship) throws IOException, JSONException {
+            Node source = relationship.getStartNode();
+            Node target = relationship.getEndNode();
+            String type = relationship.getType().name();
+            String semanticLabel = getSemanticLabel(relationship);
+            switch (getFormat()) {
+                case CSV:
+                    out.write(source.getId() + "," + target.getId()
+                            + "," + escapeCsv(source.getProperty("name", null))
+                            + "," + escapeCsv(target.getProperty("name", null))
+                            + "," + type
+                            + "," + escapeCsv(semanticLabel));
+                    for (String property : RELATIONSHIP_PROPERTIES) {
+                        out.write(',');
+                        out.write(escapeCsv(relationship.getProperty(property, null)));
+                    }
+                    out.write('\n');
+                    break;
+                case JSONL:
+                    JSONObject json = new JSONObject(relationship.getAllProperties());
+                    json.put("source", source.getId());
+                    json.put("target", target.getId());
+                    json.put("type", type);
+                    json.put("semanticLabel", semanticLabel);
+                    out.write(json.toString());
+                    out.write('\n');
+                    break;
+                case GRAPHML:
+                    out.write("    <edge source=\"n" + source.getId() + "\" target=\"n" + target.getId() + "\">"
+                            + "<data key=\"type\">" + type + "</data>"
+                            + "<data key=\"semanticLabel\">" + escapeXml(semanticLabel) + "</data>");
+                    for (String property : RELATIONSHIP_PROPERTIES) {
+                        if (relationship.hasProperty(property)) {
+                            out.write("<data key=\"" + property + "\">"
+                                    + escapeXml(relationship.getProperty(property)) + "</data>");
+                        }
+                    }
+                    out.write("</edge>\n");
+                    break;
+            }
+        }
+
+
+        /**
+         * Returns what tells a relationship apart from the other relationships of its start node, apart from its type.
+         */
+        private String getNeighborKey(Relationship relationship) {
+            return relationship.getEndNode().getId() + "\t" + getSemanticLabel(relationship);
+        }
+
+
+        private String getSemanticLabel(Relationship relationship) {
+            Object semanticLabelId = relationship.getProperty("semanticLabelId", null);
+            if (semanticLabelId != null) {
+                String semanticLabel = getSemanticLabels().get(semanticLabelId);
+                return semanticLabel != null ? semanticLabel : "";
+            }
+            return (String) relationship.getProperty("semanticLabel", "");
+        }
+
+
+        private String join(String[] values) {
+            StringBuilder s = new StringBuilder();
+            for (String value : values) {
+                if (s.length() > 0) {
+                    s.append(',');
+                }
+                s.append(value);
+            }
+            return s.toString();
+        }
+    }
+}
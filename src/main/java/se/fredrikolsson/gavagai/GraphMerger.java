@@ -0,0 +1,659 @@
+package se.fredrikolsson.gavagai;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class responsible for merging graph databases built by separate runs of
+ * {@link se.fredrikolsson.gavagai.GraphCreator} into a new graph database.
+ * <p>
+ * Terms are de-duplicated by name and language, and relationships by their source term, target term and semantic
+ * label, whatever their type. When the same term or relationship occurs in several sources, the properties from the
+ * source given last on the command line are kept. Strength bucket relationships are not copied from the sources, but
+ * written anew from the strength kept, with the cut-offs given to the merge, if any. The result is written with
+ * Neo4j's batch inserter rather than through transactions.
+ * <p>
+ * The merge streams the sources in two passes, so that its memory use does not depend on the number of
+ * properties or relationships in them:
+ * <ol>
+ * <li>The terms of all sources are read in parallel, one thread per source, and handed in batches to the writer.
+ * The writer keeps only a {@link CompactIdMap} from term to node id, and the index of the source each node's
+ * properties came from, in all between 50 and 100 bytes per term.</li>
+ * <li>The relationships are read by one thread per processor, each responsible for a share of the merged terms.
+ * The sources are scanned from the last to the first, and the first time a thread meets one of its terms, it reads
+ * the outgoing relationships of that term from every source having it, de-duplicates them, and hands them to the
+ * writer. Only the relationships of one term at a time are held by each thread.</li>
+ * </ol>
+ * <p>
+ * Invoke {@link se.fredrikolsson.gavagai.GraphCreator} with <code>merge -h</code> to see usage information.
+ */
+class GraphMerger {
+
+    private static Logger logger = LoggerFactory.getLogger(GraphMerger.class);
+
+    private final static int BATCH_SIZE = 1000;
+    private final static int MAX_PENDING_BATCHES = 64;
+
+    private final List<String> sourceDbNames;
+    private final String targetDbName;
+    private final List<GraphDatabaseService> sourceDbs;
+    private final List<Map<Integer, String>> sourceSemanticLabels;
+    private final CompactIdMap termIds;
+    private final StrengthBuckets strengthBuckets;
+    private final int numThreads;
+    private final ExecutorService readerExecutor;
+    private int[] termSourceIndexes;
+
+
+    static void main(String[] args) throws Exception {
+
+        OptionSet options = null;
+        try {
+            OptionParser parser = new OptionParser("i:o:h");
+            parser.accepts("strength-buckets").withRequiredArg();
+            parser.accepts("buckets-only");
+            options = parser.parse(args);
+        } catch (Throwable t) {
+            System.err.println("\nError: " + t.getMessage() + ". Exiting.\n");
+            GraphMerger.printUsage();
+            System.exit(1);
+        }
+
+        if (options.has("h") || !(options.has("i") && options.has("o"))
+                || (options.has("buckets-only") && !options.has("strength-buckets"))) {
+            GraphMerger.printUsage();
+            System.exit(1);
+        }
+
+        StrengthBuckets strengthBuckets = null;
+        try {
+            if (options.has("strength-buckets")) {
+                strengthBuckets = StrengthBuckets.parse(
+                        (String) options.valueOf("strength-buckets"), options.has("buckets-only"));
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("\nError: " + e.getMessage() + ". Exiting.\n");
+            GraphMerger.printUsage();
+            System.exit(1);
+        }
+
+        @SuppressWarnings("unchecked")
+        List<String> sourceDbNames = (List<String>) options.valuesOf("i");
+        GraphMerger merger = new GraphMerger(sourceDbNames, (String) options.valueOf("o"), strengthBuckets);
+        merger.merge();
+    }
+
+
+    /**
+     * @param strengthBuckets the cut-offs to write strength bucket relationships with, or null to write NEIGHBOR
+     *                        relationships only.
+     */
+    private GraphMerger(List<String> sourceDbNames, String targetDbName, StrengthBuckets strengthBuckets) {
+        this.sourceDbNames = sourceDbNames;
+        this.targetDbName = targetDbName;
+        this.strengthBuckets = strengthBuckets;
+        this.sourceDbs = new ArrayList<>();
+        this.sourceSemanticLabels = new ArrayList<>();
+        this.termIds = new CompactIdMap();
+        this.termSourceIndexes = new int[1024];
+        this.numThreads = Math.max(Runtime.getRuntime().availableProcessors(), sourceDbNames.size());
+        this.readerExecutor = Executors.newFixedThreadPool(getNumThreads(), new NamingThreadFactory("mergeReader"));
+    }
+
+
+    private void merge() throws Exception {
+        long startTime = System.currentTimeMillis();
+        File target = new File(getTargetDbName());
+        String[] existing = target.list();
+        if (existing != null && existing.length > 0) {
+            throw new IOException("Target directory is not empty: " + getTargetDbName());
+        }
+
+        try {
+            for (String sourceDbName : getSourceDbNames()) {
+                logger.info("Opening source database {}", sourceDbName);
+                GraphDatabaseService db = new GraphDatabaseFactory()
+                        .newEmbeddedDatabaseBuilder(new File(sourceDbName))
+                        .setConfig(GraphDatabaseSettings.read_only, "true")
+                        .newGraphDatabase();
+                getSourceDbs().add(db);
+                getSourceSemanticLabels().add(readSemanticLabels(db));
+            }
+            logger.info("Writing merged graph database to {}", target);
+            BatchInserter inserter = BatchInserters.inserter(target);
+            try {
+                write(inserter);
+            } finally {
+                inserter.shutdown();
+            }
+        } finally {
+            getReaderExecutor().shutdownNow();
+            for (GraphDatabaseService db : getSourceDbs()) {
+                db.shutdown();
+            }
+        }
+
+        long runningTime = System.currentTimeMillis() - startTime;
+        logger.info(String.format("Merged into %s in %d min, %d sec", getTargetDbName(),
+                TimeUnit.MILLISECONDS.toMinutes(runningTime),
+                TimeUnit.MILLISECONDS.toSeconds(runningTime) -
+                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(runningTime))
+        ));
+    }
+
+
+    private void write(BatchInserter inserter) throws Exception {
+        BlockingQueue<List<TermRecord>> termBatches = new ArrayBlockingQueue<>(MAX_PENDING_BATCHES);
+        List<Future<?>> termReaders = new ArrayList<>();
+        for (int i = 0; i < getSourceDbs().size(); i++) {
+            termReaders.add(getReaderExecutor().submit(new TermReader(i, termBatches)));
+        }
+        Set<String> languages = new HashSet<>();
+        boolean hasTermsWithoutLanguage = false;
+        int numEnded = 0;
+        while (numEnded < termReaders.size()) {
+            List<TermRecord> batch = termBatches.take();
+            if (batch.isEmpty()) {
+                numEnded++;
+            }
+            for (TermRecord term : batch) {
+                long id = getTermIds().get(term.getKey());
+                if (id == CompactIdMap.NO_ID) {
+                    String language = (String) term.getProperties().get("language");
+                    Label[] labels = language == null
+                            ? new Label[]{LexiconLookupResponseWorker.TermLabel.TERM}
+                            : new Label[]{LexiconLookupResponseWorker.TermLabel.TERM,
+                                    LexiconLookupResponseWorker.getLanguageLabel(language)};
+                    id = inserter.createNode(term.getProperties(), labels);
+                    getTermIds().put(term.getKey(), id);
+                    setTermSourceIndex(id, term.getSourceIndex());
+                    if (language != null) {
+                        languages.add(language);
+                    } else {
+                        hasTermsWithoutLanguage = true;
+                    }
+                } else if (term.getSourceIndex() > getTermSourceIndex(id)) {
+                    inserter.setNodeProperties(id, term.getProperties());
+                    setTermSourceIndex(id, term.getSourceIndex());
+                }
+            }
+        }
+        awaitReaders(termReaders);
+        logger.info("Wrote {} unique terms", getTermIds().size());
+
+        BlockingQueue<List<NeighborRecord>> neighborBatches = new ArrayBlockingQueue<>(MAX_PENDING_BATCHES);
+        List<Future<?>> neighborReaders = new ArrayList<>();
+        for (int i = 0; i < getNumThreads(); i++) {
+            neighborReaders.add(getReaderExecutor().submit(new NeighborReader(i, neighborBatches)));
+        }
+        Map<String, Integer> semanticLabelIds = new HashMap<>();
+        long numRelationships = 0;
+        numEnded = 0;
+        while (numEnded < neighborReaders.size()) {
+            List<NeighborRecord> batch = neighborBatches.take();
+            if (batch.isEmpty()) {
+                numEnded++;
+            }
+            for (NeighborRecord neighbor : batch) {
+                Integer semanticLabelId = semanticLabelIds.get(neighbor.getSemanticLabel());
+                if (semanticLabelId == null) {
+                    semanticLabelId = semanticLabelIds.size();
+                    semanticLabelIds.put(neighbor.getSemanticLabel(), semanticLabelId);
+                    Map<String, Object> properties = new HashMap<>();
+                    properties.put(SemanticLabelDictionary.ID_PROPERTY, semanticLabelId);
+                    properties.put(SemanticLabelDictionary.NAME_PROPERTY, neighbor.getSemanticLabel());
+                    inserter.createNode(properties, SemanticLabelDictionary.DictionaryLabel.SEMANTIC_LABEL);
+                }
+                Map<String, Object> properties = neighbor.getProperties();
+                properties.put("semanticLabelId", semanticLabelId);
+                numRelationships += writeRelationship(inserter, neighbor.getSource(), neighbor.getTarget(), properties);
+            }
+        }
+        awaitReaders(neighborReaders);
+
+        // Terms are keyed by name alone, or by name in a single language, only if they all have the same language.
+        if (languages.isEmpty() || (languages.size() == 1 && !hasTermsWithoutLanguage)) {
+            inserter.createDeferredConstraint(LexiconLookupResponseWorker.TermLabel.TERM)
+                    .assertPropertyIsUnique("name")
+                    .create();
+        } else {
+            // The same name may occur in several languages. Names are unique per language label only.
+            inserter.createDeferredSchemaIndex(LexiconLookupResponseWorker.TermLabel.TERM).on("name").create();
+        }
+        for (String language : languages) {
+            inserter.createDeferredConstraint(LexiconLookupResponseWorker.getLanguageLabel(language))
+                    .assertPropertyIsUnique("name")
+                    .create();
+        }
+        inserter.createDeferredConstraint(SemanticLabelDictionary.DictionaryLabel.SEMANTIC_LABEL)
+                .assertPropertyIsUnique(SemanticLabelDictionary.NAME_PROPERTY)
+                .create();
+        logger.info("Wrote {} terms, {} semantic labels and {} relationships",
+                getTermIds().size(), semanticLabelIds.size(), numRelationships);
+    }
+
+
+    /**
+     * Writes a relationship as NEIGHBOR, along with its strength bucket copy, or as its strength bucket only,
+     * depending on the strength buckets given.
+     *
+     * @return the number of relationships written.
+     */
+    private int writeRelationship(BatchInserter inserter, long source, long target, Map<String, Object> properties) {
+        Object strength = properties.get("strength");
+        if (getStrengthBuckets() == null || !(strength instanceof Double)) {
+            inserter.createRelationship(source, target, LexiconLookupResponseWorker.TermRelation.NEIGHBOR, properties);
+            return 1;
+        }
+        LexiconLookupResponseWorker.TermRelation bucket = getStrengthBuckets().getRelationType((Double) strength);
+        if (getStrengthBuckets().isExclusive()) {
+            inserter.createRelationship(source, target, bucket, properties);
+            return 1;
+        }
+        inserter.createRelationship(source, target, LexiconLookupResponseWorker.TermRelation.NEIGHBOR, properties);
+        Map<String, Object> copyProperties = new HashMap<>();
+        copyProperties.put("semanticLabelId", properties.get("semanticLabelId"));
+        copyProperties.put("strength", strength);
+        inserter.createRelationship(source, target, bucket, copyProperties);
+        return 2;
+    }
+
+
+    /**
+     * Waits for the given readers to finish, and throws their failure if any.
+     */
+    private static void awaitReaders(List<Future<?>> readers) throws InterruptedException, IOException {
+        for (Future<?> reader : readers) {
+            try {
+                reader.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Could not read a source database: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+    }
+
+
+    /**
+     * Hands the empty batch that tells the writer that a reader has finished.
+     */
+    private static <T> void endBatches(BlockingQueue<List<T>> batches) {
+        try {
+            batches.put(Collections.<T>emptyList());
+        } catch (InterruptedException e) {
+            logger.debug("Interrupted! The merge has been aborted");
+        }
+    }
+
+
+    private static Map<Integer, String> readSemanticLabels(GraphDatabaseService db) {
+        Map<Integer, String> result = new HashMap<>();
+        try (Transaction tx = db.beginTx();
+             ResourceIterator<Node> nodes = db.findNodes(SemanticLabelDictionary.DictionaryLabel.SEMANTIC_LABEL)) {
+            while (nodes.hasNext()) {
+                Node node = nodes.next();
+                result.put((Integer) node.getProperty(SemanticLabelDictionary.ID_PROPERTY),
+                        (String) node.getProperty(SemanticLabelDictionary.NAME_PROPERTY));
+            }
+            tx.success();
+        }
+        return result;
+    }
+
+
+    /**
+     * Returns the key by which a term is de-duplicated: its name, qualified by its language if it has one.
+     */
+    private static String getTermKey(Node node) {
+        String name = (String) node.getProperty("name");
+        Object language = node.getProperty("language", null);
+        return language == null ? name : language + "\u0000" + name;
+    }
+
+
+    /**
+     * Finds the term with the given name and language, or without a language if it is null, in a source database.
+     */
+    private static Node findTerm(GraphDatabaseService db, String name, Object language) {
+        try (ResourceIterator<Node> nodes = db.findNodes(LexiconLookupResponseWorker.TermLabel.TERM, "name", name)) {
+            while (nodes.hasNext()) {
+                Node node = nodes.next();
+                Object nodeLanguage = node.getProperty("language", null);
+                if (language == null ? nodeLanguage == null : language.equals(nodeLanguage)) {
+                    return node;
+                }
+            }
+        }
+        return null;
+    }
+
+
+    private static void printUsage() {
+        String s = "Usage:\n" +
+                "  merge -i <dBDir> -i <dBDir> (-i <dBDir> ...) -o <dBDir>\n" +
+                "     (--strength-buckets <strong>,<medium> (--buckets-only))\n" +
+                "  merge -h\n\n" +
+                "where  -i <dBDir>  is a directory holding a Neo4j graph database built by this program. Specify\n" +
+                "                   this option once for each database to merge. Where the databases overlap,\n" +
+                "                   the properties in the database specified last are kept\n" +
+                "       -o <dBDir>  is the empty directory in which to store the merged Neo4j graph database\n" +
+                "       --strength-buckets <strong>,<medium> also writes each relationship with the type\n" +
+                "                   NEIGHBOR_STRONG, NEIGHBOR_MEDIUM or NEIGHBOR_WEAK, by comparing its strength to\n" +
+                "                   the given cut-offs, e.g. 0.5,0.3. Strength bucket relationships in the\n" +
+                "                   databases merged are not copied. Optional\n" +
+                "       --buckets-only writes the strength bucket relationships instead of NEIGHBOR ones.\n" +
+                "                   Optional\n" +
+                "       -h          prints this usage information\n";
+
+        System.out.println(s);
+    }
+
+
+    private List<String> getSourceDbNames() {
+        return sourceDbNames;
+    }
+
+
+    private String getTargetDbName() {
+        return targetDbName;
+    }
+
+
+    private List<GraphDatabaseService> getSourceDbs() {
+        return sourceDbs;
+    }
+
+
+    private List<Map<Integer, String>> getSourceSemanticLabels() {
+        return sourceSemanticLabels;
+    }
+
+
+    private CompactIdMap getTermIds() {
+        return termIds;
+    }
+
+
+    private StrengthBuckets getStrengthBuckets() {
+        return strengthBuckets;
+    }
+
+
+    private int getTermSourceIndex(long termId) {
+        return termSourceIndexes[(int) termId];
+    }
+
+
+    private void setTermSourceIndex(long termId, int sourceIndex) {
+        if (termId >= termSourceIndexes.length) {
+            termSourceIndexes =
+                    Arrays.copyOf(termSourceIndexes, Math.max((int) termId + 1, termSourceIndexes.length * 2));
+        }
+        termSourceIndexes[(int) termId] = sourceIndex;
+    }
+
+
+    private int getNumThreads() {
+        return numThreads;
+    }
+
+
+    private ExecutorService getReaderExecutor() {
+        return readerExecutor;
+    }
+
+
+    /**
+     * Reads the terms of a single source database.
+     */
+    private class TermReader implements Runnable {
+
+        private final int sourceIndex;
+        private final BlockingQueue<List<TermRecord>> batches;
+
+
+        TermReader(int sourceIndex, BlockingQueue<List<TermRecord>> batches) {
+            this.sourceIndex = sourceIndex;
+            this.batches = batches;
+        }
+
+
+        @Override
+        public void run() {
+            GraphDatabaseService db = getSourceDbs().get(sourceIndex);
+            int numTerms = 0;
+            try {
+                try (Transaction tx = db.beginTx();
+                     ResourceIterator<Node> nodes = db.findNodes(LexiconLookupResponseWorker.TermLabel.TERM)) {
+                    List<TermRecord> batch = new ArrayList<>(BATCH_SIZE);
+                    while (nodes.hasNext()) {
+                        Node node = nodes.next();
+                        batch.add(new TermRecord(sourceIndex, getTermKey(node), node.getAllProperties()));
+                        numTerms++;
+                        if (batch.size() == BATCH_SIZE) {
+                            batches.put(batch);
+                            batch = new ArrayList<>(BATCH_SIZE);
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        batches.put(batch);
+                    }
+                    tx.success();
+                }
+                logger.info("Read {} terms from {}", numTerms, getSourceDbNames().get(sourceIndex));
+            } catch (InterruptedException e) {
+                logger.debug("Interrupted! Aborting reading of terms");
+            } finally {
+                endBatches(batches);
+            }
+        }
+    }
+
+
+    /**
+     * Reads the outgoing relationships of the merged terms whose node ids fall in one partition, from every source
+     * database having them.
+     */
+    private class NeighborReader implements Runnable {
+
+        private final int partition;
+        private final BlockingQueue<List<NeighborRecord>> batches;
+
+
+        NeighborReader(int partition, BlockingQueue<List<NeighborRecord>> batches) {
+            this.partition = partition;
+            this.batches = batches;
+        }
+
+
+        @Override
+        public void run() {
+            List<Transaction> transactions = new ArrayList<>();
+            try {
+                for (GraphDatabaseService db : getSourceDbs()) {
+                    transactions.add(db.beginTx());
+                }
+                BitSet isRead = new BitSet();
+                List<NeighborRecord> batch = new ArrayList<>(BATCH_SIZE);
+                for (int i = getSourceDbs().size() - 1; i >= 0; i--) {
+                    try (ResourceIterator<Node> nodes =
+                                 getSourceDbs().get(i).findNodes(LexiconLookupResponseWorker.TermLabel.TERM)) {
+                        while (nodes.hasNext()) {
+                            Node node = nodes.next();
+                            long id = getTermIds().get(getTermKey(node));
+                            if (id % getNumThreads() != partition || isRead.get((int) id)) {
+                                continue;
+                            }
+                            isRead.set((int) id);
+                            // Later sources do not have the term, or it would have been read from them already.
+                            readNeighbors(id, node, i, batch);
+                            if (batch.size() >= BATCH_SIZE) {
+                                batches.put(batch);
+                                batch = new ArrayList<>(BATCH_SIZE);
+                            }
+                        }
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    batches.put(batch);
+                }
+                for (Transaction tx : transactions) {
+                    tx.success();
+                }
+            } catch (InterruptedException e) {
+                logger.debug("Interrupted! Aborting reading of relationships");
+            } finally {
+                for (Transaction tx : transactions) {
+                    tx.close();
+                }
+                endBatches(batches);
+            }
+        }
+
+
+        /**
+         * Reads the relationships of a term from the given source and every earlier one, keeping the first of each
+         * target and semantic label. Within a source, a NEIGHBOR relationship is preferred over its strength bucket
+         * copy, which only carries some of its properties.
+         */
+        private void readNeighbors(long id, Node node, int lastSourceIndex, List<NeighborRecord> batch) {
+            String name = (String) node.getProperty("name");
+            Object language = node.getProperty("language", null);
+            Set<String> keys = new HashSet<>();
+            for (int i = lastSourceIndex; i >= 0; i--) {
+                Node term = i == lastSourceIndex ? node : findTerm(getSourceDbs().get(i), name, language);
+                if (term == null) {
+                    continue;
+                }
+                Map<String, NeighborRecord> records = new HashMap<>();
+                Set<String> genericKeys = new HashSet<>();
+                for (Relationship relationship : term.getRelationships(
+                        Direction.OUTGOING, LexiconLookupResponseWorker.TermRelation.values())) {
+                    Map<String, Object> properties = relationship.getAllProperties();
+                    Object semanticLabelId = properties.remove("semanticLabelId");
+                    Object semanticLabel = properties.remove("semanticLabel");
+                    if (semanticLabelId != null) {
+                        semanticLabel = getSourceSemanticLabels().get(i).get(semanticLabelId);
+                    }
+                    String targetKey = getTermKey(relationship.getEndNode());
+                    long targetId = getTermIds().get(targetKey);
+                    if (targetId == CompactIdMap.NO_ID) {
+                        continue;
+                    }
+                    NeighborRecord record = new NeighborRecord(
+                            properties, id, targetId, semanticLabel != null ? (String) semanticLabel : "");
+                    String key = targetKey + '\u0000' + record.getSemanticLabel();
+                    if (keys.contains(key) || genericKeys.contains(key)) {
+                        continue;
+                    }
+                    if (relationship.isType(LexiconLookupResponseWorker.TermRelation.NEIGHBOR)) {
+                        genericKeys.add(key);
+                        records.put(key, record);
+                    } else if (!records.containsKey(key)) {
+                        records.put(key, record);
+                    }
+                }
+                keys.addAll(records.keySet());
+                batch.addAll(records.values());
+            }
+        }
+    }
+
+
+    private static class TermRecord {
+
+        private final int sourceIndex;
+        private final String key;
+        private final Map<String, Object> properties;
+
+
+        TermRecord(int sourceIndex, String key, Map<String, Object> properties) {
+            this.sourceIndex = sourceIndex;
+            this.key = key;
+            this.properties = properties;
+        }
+
+
+        int getSourceIndex() {
+            return sourceIndex;
+        }
+
+
+        String getKey() {
+            return key;
+        }
+
+
+        Map<String, Object> getProperties() {
+            return properties;
+        }
+    }
+
+
+    private static class NeighborRecord {
+
+        private final Map<String, Object> properties;
+        private final long source;
+        private final long target;
+        private final String semanticLabel;
+
+
+        NeighborRecord(Map<String, Object> properties, long source, long target, String semanticLabel) {
+            this.properties = properties;
+            this.source = source;
+            this.target = target;
+            this.semanticLabel = semanticLabel;
+        }
+
+
+        Map<String, Object> getProperties() {
+            return properties;
+        }
+
+
+        long getSource() {
+            return source;
+        }
+
+
+        long getTarget() {
+            return target;
+        }
+
+
+        String getSemanticLabel() {
+            return semanticLabel;
+        }
+    }
+}
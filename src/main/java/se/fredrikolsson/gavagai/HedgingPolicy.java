@@ -0,0 +1,110 @@
+package se.fredrikolsson.gavagai;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class deciding when a lookup in Gavagai's semantic memories should be hedged, that is, when a second, identical
+ * request should be sent because the first one is taking unusually long.
+ * <p>
+ * A request is hedged once it has been outstanding for longer than the 95th percentile of the latencies observed
+ * recently. To keep the total number of API calls bounded, at most a given fraction of all requests may be hedged.
+ * A single instance is shared by all request workers.
+ */
+class HedgingPolicy {
+
+    private final static int NUM_LATENCY_SAMPLES = 1000;
+    private final static int MIN_LATENCY_SAMPLES = 50;
+    private final static int RECOMPUTE_INTERVAL = 100;
+    private final static double PERCENTILE = 0.95;
+
+    private final double maxHedgeRatio;
+    private final long[] latencySamples;
+    private final AtomicLong numRequests = new AtomicLong();
+    private final AtomicLong numHedges = new AtomicLong();
+    private final AtomicLong numHedgesWon = new AtomicLong();
+    private long numLatencySamples;
+    private volatile long hedgeDelay = -1;
+
+
+    /**
+     * @param maxHedgeRatio the maximum fraction of requests that may be hedged. Zero disables hedging.
+     */
+    HedgingPolicy(double maxHedgeRatio) {
+        this.maxHedgeRatio = maxHedgeRatio;
+        this.latencySamples = new long[NUM_LATENCY_SAMPLES];
+    }
+
+
+    boolean isEnabled() {
+        return getMaxHedgeRatio() > 0.0;
+    }
+
+
+    void recordRequest() {
+        numRequests.incrementAndGet();
+    }
+
+
+    synchronized void recordLatency(long latencyMillis) {
+        latencySamples[(int) (numLatencySamples % NUM_LATENCY_SAMPLES)] = latencyMillis;
+        numLatencySamples++;
+        if (numLatencySamples == MIN_LATENCY_SAMPLES
+                || (numLatencySamples > MIN_LATENCY_SAMPLES && numLatencySamples % RECOMPUTE_INTERVAL == 0)) {
+            int n = (int) Math.min(numLatencySamples, NUM_LATENCY_SAMPLES);
+            long[] sorted = Arrays.copyOf(latencySamples, n);
+            Arrays.sort(sorted);
+            hedgeDelay = sorted[(int) Math.min(n - 1, Math.floor(n * PERCENTILE))];
+        }
+    }
+
+
+    /**
+     * Returns the number of milliseconds after which an outstanding request should be hedged, or -1 if too few
+     * latencies have been observed to tell.
+     */
+    long getHedgeDelay() {
+        return hedgeDelay;
+    }
+
+
+    /**
+     * Reserves one hedged request.
+     *
+     * @return true if the hedge fits within the hedge budget, false otherwise.
+     */
+    boolean tryAcquireHedge() {
+        long n;
+        do {
+            n = numHedges.get();
+            if (n + 1 > getMaxHedgeRatio() * numRequests.get()) {
+                return false;
+            }
+        } while (!numHedges.compareAndSet(n, n + 1));
+        return true;
+    }
+
+
+    /**
+     * Gives back a hedged request reserved by {@link #tryAcquireHedge()} that was not sent after all.
+     */
+    void releaseHedge() {
+        numHedges.decrementAndGet();
+    }
+
+
+    void recordHedgeWon() {
+        numHedgesWon.incrementAndGet();
+    }
+
+
+    String getStatisticsMessage() {
+        return "Hedged " + numHedges.get() + " of " + numRequests.get() + " lookups, of which " + numHedgesWon.get()
+                + " were answered first by the hedge. Current hedge delay: " + getHedgeDelay() + " ms";
+    }
+
+
+    private double getMaxHedgeRatio() {
+        return maxHedgeRatio;
+    }
+}
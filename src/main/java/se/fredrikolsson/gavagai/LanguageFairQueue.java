@@ -0,0 +1,331 @@
+package se.fredrikolsson.gavagai;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of lookup requests holding a separate frontier for each language, and handing out requests from
+ * the frontiers in proportion to their weights.
+ * <p>
+ * Requests are taken using smooth weighted round-robin over the languages that have requests waiting: a language
+ * with weight 2 is served twice as often as one with weight 1, and the turns are interleaved rather than bunched.
+ * A language that runs out of requests gives up its turns to the others, so no request worker sits idle while
+ * there is work in any language. Requests for a language without a given weight are served with weight 1.
+ * The capacity is shared by all languages.
+ */
+class LanguageFairQueue extends AbstractQueue<LookupRequest> implements BlockingQueue<LookupRequest> {
+
+    private final static int DEFAULT_WEIGHT = 1;
+
+    private final int capacity;
+    private final Map<String, Frontier> frontiers;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int size;
+
+
+    /**
+     * @param weights the weight of each language, by language code.
+     */
+    LanguageFairQueue(int capacity, Map<String, Integer> weights) {
+        this.capacity = capacity;
+        this.frontiers = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> weight : weights.entrySet()) {
+            frontiers.put(weight.getKey(), new Frontier(weight.getValue()));
+        }
+    }
+
+
+    @Override
+    public boolean offer(LookupRequest request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            if (size >= capacity) {
+                return false;
+            }
+            enqueue(request);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public void put(LookupRequest request) throws InterruptedException {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        lock.lockInterruptibly();
+        try {
+            while (size >= capacity) {
+                notFull.await();
+            }
+            enqueue(request);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public boolean offer(LookupRequest request, long timeout, TimeUnit unit) throws InterruptedException {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size >= capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(request);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public LookupRequest poll() {
+        lock.lock();
+        try {
+            return size == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public LookupRequest take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public LookupRequest poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Returns the request that would be taken next, without taking it.
+     */
+    @Override
+    public LookupRequest peek() {
+        lock.lock();
+        try {
+            Frontier next = selectFrontier();
+            return next == null ? null : next.getRequests().peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public int drainTo(Collection<? super LookupRequest> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+
+    @Override
+    public int drainTo(Collection<? super LookupRequest> c, int maxElements) {
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && size > 0) {
+                c.add(dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Returns an iterator over a snapshot of the queued requests, language by language.
+     */
+    @Override
+    public Iterator<LookupRequest> iterator() {
+        lock.lock();
+        try {
+            List<LookupRequest> snapshot = new ArrayList<>(size);
+            for (Frontier frontier : frontiers.values()) {
+                snapshot.addAll(frontier.getRequests());
+            }
+            return snapshot.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Returns the number of requests waiting in each language's frontier.
+     */
+    Map<String, Integer> getFrontierSizes() {
+        lock.lock();
+        try {
+            Map<String, Integer> result = new LinkedHashMap<>();
+            for (Map.Entry<String, Frontier> frontier : frontiers.entrySet()) {
+                result.put(frontier.getKey(), frontier.getValue().getRequests().size());
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    private void enqueue(LookupRequest request) {
+        Frontier frontier = frontiers.get(request.getLanguageCode());
+        if (frontier == null) {
+            frontier = new Frontier(DEFAULT_WEIGHT);
+            frontiers.put(request.getLanguageCode(), frontier);
+        }
+        frontier.getRequests().add(request);
+        size++;
+        notEmpty.signal();
+    }
+
+
+    private LookupRequest dequeue() {
+        Frontier selected = selectFrontier();
+        int totalWeight = 0;
+        for (Frontier frontier : frontiers.values()) {
+            if (!frontier.getRequests().isEmpty()) {
+                frontier.setCurrentWeight(frontier.getCurrentWeight() + frontier.getWeight());
+                totalWeight += frontier.getWeight();
+            }
+        }
+        selected.setCurrentWeight(selected.getCurrentWeight() - totalWeight);
+        LookupRequest result = selected.getRequests().poll();
+        if (selected.getRequests().isEmpty()) {
+            // A language coming back later starts afresh, rather than with turns saved up or owed.
+            selected.setCurrentWeight(0);
+        }
+        size--;
+        notFull.signal();
+        return result;
+    }
+
+
+    /**
+     * Picks the non-empty frontier whose current weight, after adding its weight, would be the highest.
+     */
+    private Frontier selectFrontier() {
+        Frontier result = null;
+        for (Frontier frontier : frontiers.values()) {
+            if (frontier.getRequests().isEmpty()) {
+                continue;
+            }
+            if (result == null || frontier.getCurrentWeight() + frontier.getWeight()
+                    > result.getCurrentWeight() + result.getWeight()) {
+                result = frontier;
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * The requests waiting for one language, and that language's share of the turns.
+     */
+    private static class Frontier {
+
+        private final int weight;
+        private final Queue<LookupRequest> requests;
+        private int currentWeight;
+
+
+        Frontier(int weight) {
+            this.weight = weight;
+            this.requests = new ArrayDeque<>();
+        }
+
+
+        int getWeight() {
+            return weight;
+        }
+
+
+        Queue<LookupRequest> getRequests() {
+            return requests;
+        }
+
+
+        int getCurrentWeight() {
+            return currentWeight;
+        }
+
+
+        void setCurrentWeight(int currentWeight) {
+            this.currentWeight = currentWeight;
+        }
+    }
+}
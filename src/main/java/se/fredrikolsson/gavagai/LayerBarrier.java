@@ -0,0 +1,66 @@
+package se.fredrikolsson.gavagai;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class keeping track of the lookups of one distance layer in a level-synchronous crawl, so that the response
+ * worker can tell when every lookup of the layer has either produced a response, or been given up on.
+ * <p>
+ * Lookups must be counted as issued before their requests are queued, and as done after their response, if any,
+ * has been queued. A single instance is shared by the response worker and all request workers.
+ */
+class LayerBarrier {
+
+    private final AtomicInteger numPendingLookups = new AtomicInteger();
+    private volatile boolean isWriting;
+    private volatile boolean hasFailed;
+
+
+    void lookupsIssued(int numLookups) {
+        numPendingLookups.addAndGet(numLookups);
+    }
+
+
+    void lookupDone() {
+        numPendingLookups.decrementAndGet();
+    }
+
+
+    /**
+     * Returns true if every lookup issued so far is done, and its response queued.
+     */
+    boolean isLayerDone() {
+        return numPendingLookups.get() == 0;
+    }
+
+
+    /**
+     * Tells whether a finished layer is being written to the database.
+     */
+    void setWriting(boolean writing) {
+        isWriting = writing;
+    }
+
+
+    /**
+     * Tells that a layer could not be written, so that the crawl, which would otherwise end quietly for lack of a
+     * next layer, is stopped as failed.
+     */
+    void setFailed(boolean failed) {
+        hasFailed = failed;
+    }
+
+
+    boolean hasFailed() {
+        return hasFailed;
+    }
+
+
+    /**
+     * Returns true if there are neither lookups pending, nor a layer being written, that could produce more
+     * lookup requests.
+     */
+    boolean isIdle() {
+        return isLayerDone() && !isWriting;
+    }
+}
@@ -3,10 +3,18 @@ package se.fredrikolsson.gavagai;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.JsonNode;
 import com.mashape.unirest.http.Unirest;
+import com.mashape.unirest.http.async.Callback;
+import com.mashape.unirest.http.exceptions.UnirestException;
+import com.mashape.unirest.request.HttpRequest;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 
 /**
  * Class for retrieving information from Gavagai's semantic memories, aka Living Lexicon.
@@ -15,38 +23,205 @@ class LexiconApiClient {
 
     private static Logger logger = LoggerFactory.getLogger(LexiconApiClient.class);
 
-    private final String apiKey;
+    private final ApiKeyPool apiKeyPool;
+    private final HedgingPolicy hedgingPolicy;
     private static final String LEXICON_API_ENDPOINT = "https://api.gavagai.se/v3/lexicon";
 
 
-    LexiconApiClient(String apiKey) {
-        this.apiKey = apiKey;
+    LexiconApiClient(ApiKeyPool apiKeyPool, HedgingPolicy hedgingPolicy) {
+        this.apiKeyPool = apiKeyPool;
+        this.hedgingPolicy = hedgingPolicy;
     }
 
 
-    JSONObject process(String word, String iso639LanguageCode) throws Exception {
+    /**
+     * Configures the HTTP clients shared by all instances of this class. Must be called before the first lookup.
+     *
+     * @param connectTimeoutMillis the maximum time to wait for a connection to be established.
+     * @param readTimeoutMillis    the maximum time to wait for data on an established connection.
+     * @param maxConnections       the maximum number of concurrent connections to the API.
+     */
+    static void configure(long connectTimeoutMillis, long readTimeoutMillis, int maxConnections) {
+        Unirest.setTimeouts(connectTimeoutMillis, readTimeoutMillis);
+        Unirest.setConcurrency(maxConnections, maxConnections);
+    }
 
-        HttpResponse<JsonNode> response = Unirest.get(getLexiconApiEndpoint() + "/{language}/{term}")
-                .routeParam("language", iso639LanguageCode)
-                .routeParam("term", word)
-                .queryString("apiKey", getApiKey())
-                .asJson();
+
+    /**
+     * Looks up a term. The caller is expected to have charged the lookup to its budgets already.
+     *
+     * @param crawlBudgets the budgets each hedged request is charged to, in addition to the hedge budget. A request
+     *                     is only hedged if all of them allow another API call.
+     */
+    JSONObject process(String word, String iso639LanguageCode, CrawlBudget... crawlBudgets) throws Exception {
+
+        ApiKeyPool.ApiKey apiKey = getApiKeyPool().acquire();
+        if (apiKey == null) {
+            throw new LexiconApiException(-1, "All API keys have used up their quota");
+        }
+
+        HttpResponse<JsonNode> response;
+        if (getHedgingPolicy().isEnabled()) {
+            getHedgingPolicy().recordRequest();
+            response = processHedged(word, iso639LanguageCode, apiKey, crawlBudgets);
+        } else {
+            response = createRequest(word, iso639LanguageCode, apiKey).asJson();
+            getApiKeyPool().recordStatus(apiKey, response.getStatus());
+        }
 
         if (response.getStatus() != 200) {
             logger.error("Got HTTP status {}: response body: {}", response.getStatus(), response.getBody().toString());
-            throw new Exception("Got HTTP status "
+            throw new LexiconApiException(response.getStatus(), "Got HTTP status "
                     + response.getStatus() + ": " + response.getStatusText());
         }
         return response.getBody().getObject();
     }
 
 
-    private String getApiKey() {
+    /**
+     * Sends a request, and a second identical one if no answer has arrived within the hedge delay and the hedge
+     * budget, the crawl budgets and the API key pool allow it. The hedge is made with a key of its own, so that it
+     * counts against the quota of that key. The first successful answer is returned, and the outstanding request is
+     * cancelled.
+     */
+    private HttpResponse<JsonNode> processHedged(String word, String iso639LanguageCode, ApiKeyPool.ApiKey apiKey,
+                                                 CrawlBudget[] crawlBudgets) throws Exception {
+        BlockingQueue<Outcome> outcomes = new ArrayBlockingQueue<>(2);
+        Future<HttpResponse<JsonNode>> primary = send(word, iso639LanguageCode, apiKey, false, outcomes);
+        Future<HttpResponse<JsonNode>> hedge = null;
+        try {
+            long hedgeDelay = getHedgingPolicy().getHedgeDelay();
+            Outcome outcome = hedgeDelay < 0 ? outcomes.take() : outcomes.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+            if (outcome == null) {
+                ApiKeyPool.ApiKey hedgeApiKey = tryAcquireHedge(crawlBudgets);
+                if (hedgeApiKey != null) {
+                    logger.debug("Hedging lookup of \"{}\" after {} ms", word, hedgeDelay);
+                    hedge = send(word, iso639LanguageCode, hedgeApiKey, true, outcomes);
+                }
+                outcome = outcomes.take();
+            }
+            if (outcome.getException() != null && hedge != null) {
+                outcome = outcomes.take();
+            }
+            if (outcome.getException() != null) {
+                throw outcome.getException();
+            }
+            if (outcome.isHedge()) {
+                getHedgingPolicy().recordHedgeWon();
+            }
+            return outcome.getResponse();
+        } finally {
+            primary.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+        }
+    }
+
+
+    /**
+     * Reserves a hedged request from the hedge budget, an API key that is available right away, and an API call from
+     * each of the crawl budgets.
+     *
+     * @return the key to make the hedged request with, or null if it should not be made.
+     */
+    private ApiKeyPool.ApiKey tryAcquireHedge(CrawlBudget[] crawlBudgets) {
+        if (!getHedgingPolicy().tryAcquireHedge()) {
+            return null;
+        }
+        ApiKeyPool.ApiKey apiKey = getApiKeyPool().tryAcquire();
+        if (apiKey == null) {
+            getHedgingPolicy().releaseHedge();
+            return null;
+        }
+        for (CrawlBudget crawlBudget : crawlBudgets) {
+            if (!crawlBudget.tryAcquireApiCall()) {
+                getApiKeyPool().release(apiKey);
+                getHedgingPolicy().releaseHedge();
+                return null;
+            }
+        }
         return apiKey;
     }
 
 
+    private Future<HttpResponse<JsonNode>> send(
+            String word, String iso639LanguageCode, final ApiKeyPool.ApiKey apiKey, final boolean isHedge,
+            final BlockingQueue<Outcome> outcomes) {
+
+        final long startTime = System.currentTimeMillis();
+        return createRequest(word, iso639LanguageCode, apiKey).asJsonAsync(new Callback<JsonNode>() {
+            @Override
+            public void completed(HttpResponse<JsonNode> response) {
+                getHedgingPolicy().recordLatency(System.currentTimeMillis() - startTime);
+                getApiKeyPool().recordStatus(apiKey, response.getStatus());
+                outcomes.offer(new Outcome(response, null, isHedge));
+            }
+
+            @Override
+            public void failed(UnirestException e) {
+                outcomes.offer(new Outcome(null, e, isHedge));
+            }
+
+            @Override
+            public void cancelled() {
+                // The request was abandoned in favor of the other one. Nobody waits for it, but how long it was
+                // outstanding is a lower bound of its latency, and leaving it out would hide the slowest requests.
+                getHedgingPolicy().recordLatency(System.currentTimeMillis() - startTime);
+            }
+        });
+    }
+
+
+    private HttpRequest createRequest(String word, String iso639LanguageCode, ApiKeyPool.ApiKey apiKey) {
+        return Unirest.get(getLexiconApiEndpoint() + "/{language}/{term}")
+                .routeParam("language", iso639LanguageCode)
+                .routeParam("term", word)
+                .queryString("apiKey", apiKey.getKey());
+    }
+
+
+    private ApiKeyPool getApiKeyPool() {
+        return apiKeyPool;
+    }
+
+
+    private HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+
     private static String getLexiconApiEndpoint() {
         return LEXICON_API_ENDPOINT;
     }
+
+
+    private static class Outcome {
+
+        private final HttpResponse<JsonNode> response;
+        private final Exception exception;
+        private final boolean isHedge;
+
+
+        Outcome(HttpResponse<JsonNode> response, Exception exception, boolean isHedge) {
+            this.response = response;
+            this.exception = exception;
+            this.isHedge = isHedge;
+        }
+
+
+        HttpResponse<JsonNode> getResponse() {
+            return response;
+        }
+
+
+        Exception getException() {
+            return exception;
+        }
+
+
+        boolean isHedge() {
+            return isHedge;
+        }
+    }
 }
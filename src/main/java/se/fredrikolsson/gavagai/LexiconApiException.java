@@ -0,0 +1,22 @@
+package se.fredrikolsson.gavagai;
+
+/**
+ * Exception thrown when the Lexicon API answers a lookup with an HTTP status other than 200.
+ */
+class LexiconApiException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int httpStatus;
+
+
+    LexiconApiException(int httpStatus, String message) {
+        super(message);
+        this.httpStatus = httpStatus;
+    }
+
+
+    int getHttpStatus() {
+        return httpStatus;
+    }
+}
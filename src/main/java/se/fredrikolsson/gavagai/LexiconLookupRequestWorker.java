@@ -1,5 +1,6 @@
 package se.fredrikolsson.gavagai;
 
+import com.google.common.cache.Cache;
 import org.apache.http.impl.execchain.RequestAbortedException;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -12,6 +13,9 @@ import java.util.concurrent.BlockingQueue;
  * Class implementing a worker responsible for retrieving a pending request to lookup information
  * in Gavagai's semantic memories from one queue, and pass the response on to another queue.
  * <p>
+ * When running as a daemon, responses are cached and shared by all workers, so that terms reached by several jobs
+ * are only looked up once while their response is in the cache.
+ * <p>
  * The application will use many workers of this type.
  */
 class LexiconLookupRequestWorker implements Runnable {
@@ -21,16 +25,32 @@ class LexiconLookupRequestWorker implements Runnable {
     private final BlockingQueue<LookupRequest> lookupRequestQueue;
     private final BlockingQueue<LookupResponse> lookupResponseQueue;
     private final LexiconApiClient lexiconApiClient;
+    private final CrawlBudget crawlBudget;
+    private final LayerBarrier layerBarrier;
+    private final RequestBacklog requestBacklog;
+    private final MemoryGovernor memoryGovernor;
+    private final Cache<String, JSONObject> responseCache;
     private boolean isRunning;
 
 
     LexiconLookupRequestWorker(BlockingQueue<LookupRequest> lookupRequestQueue,
                                BlockingQueue<LookupResponse> lookupResponseQueue,
-                               String apiKey) {
+                               ApiKeyPool apiKeyPool,
+                               CrawlBudget crawlBudget,
+                               HedgingPolicy hedgingPolicy,
+                               LayerBarrier layerBarrier,
+                               RequestBacklog requestBacklog,
+                               MemoryGovernor memoryGovernor,
+                               Cache<String, JSONObject> responseCache) {
 
         this.lookupRequestQueue = lookupRequestQueue;
         this.lookupResponseQueue = lookupResponseQueue;
-        this.lexiconApiClient = new LexiconApiClient(apiKey);
+        this.lexiconApiClient = new LexiconApiClient(apiKeyPool, hedgingPolicy);
+        this.crawlBudget = crawlBudget;
+        this.layerBarrier = layerBarrier;
+        this.requestBacklog = requestBacklog;
+        this.memoryGovernor = memoryGovernor;
+        this.responseCache = responseCache;
         setRunning(true);
     }
 
@@ -39,12 +59,26 @@ class LexiconLookupRequestWorker implements Runnable {
     public void run() {
         while (isRunning()) {
             LookupRequest request = null;
+            boolean isResponseQueued = false;
             try {
+                getMemoryGovernor().awaitFetchPermit();
                 request = getLookupRequestQueue().take();
-                if (request != null) {
-                    JSONObject rawResponse =
-                            getLexiconApiClient().process(request.getTerm(), request.getLanguageCode());
-
+                LookupEvents.requestDequeued(request);
+                JSONObject rawResponse = getCachedResponse(request);
+                if (request != null && request.getJob() != null && request.getJob().isCancelled()) {
+                    logger.debug("Dropping lookup request for term \"{}\": job {} was cancelled",
+                            request.getTerm(), request.getJob().getId());
+                    lookupDone(request, false);
+                } else if (request != null && rawResponse == null && !tryAcquireApiCall(request)) {
+                    logger.info("Dropping lookup request for term \"{}\": {}",
+                            request.getTerm(), getExhaustionReason(request));
+                    lookupDone(request, false);
+                } else if (request != null) {
+                    boolean isCached = rawResponse != null;
+                    if (!isCached) {
+                        rawResponse = lookup(request);
+                        cacheResponse(request, rawResponse);
+                    }
                     // Continue processing a response only if there is useful information in it
                     if (rawResponse.get("semanticallySimilarWordFilaments") != null
                             && ((JSONArray) rawResponse.get("semanticallySimilarWordFilaments")).length() > 0) {
@@ -52,9 +86,13 @@ class LexiconLookupRequestWorker implements Runnable {
                                 rawResponse,
                                 request.getDistance() + 1,
                                 request.getLanguageCode(),
-                                request.getTerm());
+                                request.getTerm(),
+                                request.getNumberOfLookupAttempts(),
+                                request.getJob());
 
                         getLookupResponseQueue().put(response);
+                        isResponseQueued = true;
+                        LookupEvents.responseQueued(response);
                         logger.info("At distance {}, got {} similar terms for \"{}\"",
                                 request.getDistance(),
                                 response.getSemanticallySimilarTerms().size(),
@@ -62,7 +100,10 @@ class LexiconLookupRequestWorker implements Runnable {
                     } else {
                         logger.info("Got no similar terms for \"{}\"", request.getTerm());
                     }
-                    Thread.sleep(100);
+                    lookupDone(request, isResponseQueued);
+                    if (!isCached) {
+                        Thread.sleep(100);
+                    }
                 }
             } catch (RequestAbortedException e) {
                 // We never end up here, despite this exception type being thrown when hitting ctrl-c and the lexicon
@@ -74,13 +115,23 @@ class LexiconLookupRequestWorker implements Runnable {
                 logger.debug("Interrupted! Aborting processing.");
                 setRunning(false);
             } catch (Exception e) {
-                if (request != null && request.getNumberOfLookupAttempts() < 3) {
-                    logger.warn("Caught exception: {}. Re-adding request for term \"{}\" to queue for later processing",
+                if (request != null && isResponseQueued) {
+                    // The response worker counts the lookup as done once it has processed the response, so the
+                    // lookup must not be retried.
+                    logger.error("Caught exception: {}, after queueing the response for term \"{}\"",
+                            e.getMessage(), request.getTerm());
+                    lookupDone(request, true);
+                } else if (request != null && request.getNumberOfLookupAttempts() < 3) {
+                    logger.warn("Caught exception: {}. Re-adding request for term \"{}\" to backlog for later processing",
                             e.getMessage(), request.getTerm() != null ? request.getTerm() : "<undefined>");
+                    LookupEvents.requestRetried(request, e.getMessage());
                     request.increaseNumberOfLookupAttempts();
-                    getLookupRequestQueue().add(request);
+                    LookupEvents.requestEnqueued(request);
+                    // The queue may be full, so the request goes through the backlog, which never refuses it.
+                    getRequestBacklog().retry(request);
                 } else if (request != null) {
                     logger.error("Dropping lookup request for term \"{}\" due to too many re-tries.", request.getTerm());
+                    lookupDone(request, false);
                 }
             }
         }
@@ -88,6 +139,76 @@ class LexiconLookupRequestWorker implements Runnable {
     }
 
 
+    private JSONObject lookup(LookupRequest request) throws Exception {
+        Object event = LookupEvents.beginApiCall();
+        int httpStatus = -1;
+        try {
+            JSONObject rawResponse = request.getJob() != null
+                    ? getLexiconApiClient().process(request.getTerm(), request.getLanguageCode(),
+                            request.getJob().getCrawlBudget(), getCrawlBudget())
+                    : getLexiconApiClient().process(request.getTerm(), request.getLanguageCode(), getCrawlBudget());
+            httpStatus = 200;
+            return rawResponse;
+        } catch (LexiconApiException e) {
+            httpStatus = e.getHttpStatus();
+            throw e;
+        } finally {
+            LookupEvents.endApiCall(event, request, httpStatus);
+        }
+    }
+
+
+    /**
+     * Reserves an API call from the budget of the request's job, if any, and from the budget of the whole crawl.
+     */
+    private boolean tryAcquireApiCall(LookupRequest request) {
+        if (request.getJob() != null && !request.getJob().getCrawlBudget().tryAcquireApiCall()) {
+            return false;
+        }
+        return getCrawlBudget().tryAcquireApiCall();
+    }
+
+
+    private String getExhaustionReason(LookupRequest request) {
+        if (request.getJob() != null && request.getJob().getCrawlBudget().isExhausted()) {
+            return "job " + request.getJob().getId() + ": " + request.getJob().getCrawlBudget().getExhaustionReason();
+        }
+        return getCrawlBudget().getExhaustionReason();
+    }
+
+
+    /**
+     * Returns the response to an earlier lookup of the same term, if responses are cached and there is one.
+     */
+    private JSONObject getCachedResponse(LookupRequest request) {
+        if (getResponseCache() == null || request == null) {
+            return null;
+        }
+        return getResponseCache().getIfPresent(request.getTerm() + "@" + request.getLanguageCode());
+    }
+
+
+    private void cacheResponse(LookupRequest request, JSONObject rawResponse) {
+        if (getResponseCache() != null) {
+            getResponseCache().put(request.getTerm() + "@" + request.getLanguageCode(), rawResponse);
+        }
+    }
+
+
+    /**
+     * Tells the layer barrier, if crawling level-synchronously, that the current request has been dealt with, and
+     * its job, if any, unless the response worker is to do so once it has processed the response.
+     */
+    private void lookupDone(LookupRequest request, boolean isResponseQueued) {
+        if (getLayerBarrier() != null) {
+            getLayerBarrier().lookupDone();
+        }
+        if (request.getJob() != null && !isResponseQueued) {
+            request.getJob().lookupDone();
+        }
+    }
+
+
     private BlockingQueue<LookupRequest> getLookupRequestQueue() {
         return lookupRequestQueue;
     }
@@ -103,6 +224,31 @@ class LexiconLookupRequestWorker implements Runnable {
     }
 
 
+    private CrawlBudget getCrawlBudget() {
+        return crawlBudget;
+    }
+
+
+    private LayerBarrier getLayerBarrier() {
+        return layerBarrier;
+    }
+
+
+    private RequestBacklog getRequestBacklog() {
+        return requestBacklog;
+    }
+
+
+    private MemoryGovernor getMemoryGovernor() {
+        return memoryGovernor;
+    }
+
+
+    private Cache<String, JSONObject> getResponseCache() {
+        return responseCache;
+    }
+
+
     private boolean isRunning() {
         return isRunning;
     }
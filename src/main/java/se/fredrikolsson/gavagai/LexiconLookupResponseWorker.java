@@ -5,89 +5,279 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.graphdb.schema.ConstraintDefinition;
+import org.neo4j.graphdb.schema.ConstraintType;
 import org.neo4j.graphdb.schema.IndexDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 
 /**
  * Class responsible for processing a queue of responses obtained from Gavagai's semantic memories,
  * and persist them in Neo4j.
  * <p>
+ * Each term node is labelled with the code of its language, in upper case, and carries it in its language
+ * property. When crawling a single language, term names are unique. When crawling several languages, the same
+ * name may occur once per language, and terms are tracked by name and language.
+ * <p>
+ * By default, each response is written in a transaction of its own, and the lookups of its similar terms are
+ * requested as soon as it has been processed, so the distance of a term depends on which response happens to
+ * arrive first. In a level-synchronous crawl, the responses of a whole distance layer are collected, written in a
+ * single transaction, and stored with the exact minimum distance of each term, before the lookups of the next
+ * layer are requested. The responses of a layer are kept in memory until it is written.
+ * <p>
  * There will only be one instance of this class present in the application.
  */
 class LexiconLookupResponseWorker implements Runnable {
 
     private static Logger logger = LoggerFactory.getLogger(LexiconLookupResponseWorker.class);
 
-    private final BlockingQueue<LookupRequest> lookupRequestQueue;
+    private final static int RESPONSE_BATCH_SIZE = 100;
+    private final static long RESPONSE_POLL_MILLIS = 100;
+    // The older semanticLabel property is kept on copies of relationships written before semantic label ids.
+    private final static String[] BUCKET_COPY_PROPERTIES = {"semanticLabelId", "semanticLabel", "strength"};
+
+    private final RequestBacklog requestBacklog;
     private final BlockingQueue<LookupResponse> lookupResponseQueue;
     private final GraphDatabaseService neo4jDb;
     private final Map<String, Integer> lookupRequestsMadeForTerms;
     private final Map<String, Integer> termsPersisted;
+    private final CrawlBudget crawlBudget;
+    private final SemanticLabelDictionary semanticLabelDictionary;
+    private final StrengthCombination undirectedStrengthCombination;
+    private final StrengthBuckets strengthBuckets;
+    private final Set<String> languageCodes;
+    private final TermCanonicalizer termCanonicalizer;
+    private final LayerBarrier layerBarrier;
+    private final SnapshotLog snapshotLog;
     private boolean isRunning;
+    private boolean isMultiLanguage;
     private int maxDistance;
 
 
     LexiconLookupResponseWorker(
-            BlockingQueue<LookupRequest> lookupRequestQueue,
+            RequestBacklog requestBacklog,
             BlockingQueue<LookupResponse> lookupResponseQueue,
             int maxDistance,
-            String dbPath) {
-
-        this.lookupRequestQueue = lookupRequestQueue;
+            String dbPath,
+            Set<String> languageCodes,
+            CrawlBudget crawlBudget,
+            StrengthCombination undirectedStrengthCombination,
+            StrengthBuckets strengthBuckets,
+            TermCanonicalizer termCanonicalizer,
+            LayerBarrier layerBarrier,
+            SnapshotLog snapshotLog) {
+
+        this.requestBacklog = requestBacklog;
         this.lookupResponseQueue = lookupResponseQueue;
         this.neo4jDb = new GraphDatabaseFactory().newEmbeddedDatabase(new File(dbPath));
         this.lookupRequestsMadeForTerms = new TreeMap<>();
         this.termsPersisted = new TreeMap<>();
+        this.crawlBudget = crawlBudget;
+        this.semanticLabelDictionary = new SemanticLabelDictionary(getNeo4jDb());
+        this.undirectedStrengthCombination = undirectedStrengthCombination;
+        this.strengthBuckets = strengthBuckets;
+        this.languageCodes = languageCodes;
+        this.termCanonicalizer = termCanonicalizer;
+        this.layerBarrier = layerBarrier;
+        this.snapshotLog = snapshotLog;
 
         setMaxDistance(maxDistance);
         setRunning(true);
     }
 
 
-    void init() {
-        setUpDbConstraint();
+    /**
+     * Sets up the database for the crawl.
+     *
+     * @throws IllegalStateException if the database cannot be crawled as configured. It is then shut down.
+     */
+    void init() throws IOException {
+        try {
+            setUpDbConstraint();
+        } catch (IllegalStateException e) {
+            getNeo4jDb().shutdown();
+            throw e;
+        }
         setUpDbIndex();
+        getSemanticLabelDictionary().init();
+        if (isSnapshot()) {
+            getSnapshotLog().open();
+        }
     }
 
 
     @Override
     public void run() {
+        if (isLevelSynchronous()) {
+            runLevelSynchronous();
+            return;
+        }
+        List<LookupResponse> batch = new ArrayList<>(RESPONSE_BATCH_SIZE);
         while (isRunning()) {
-            LookupResponse response;
             try {
-                response = getLookupResponseQueue().take();
-                if (response != null) {
+                getRequestBacklog().feed();
+                LookupResponse first = getLookupResponseQueue().poll(RESPONSE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                getLookupResponseQueue().drainTo(batch, RESPONSE_BATCH_SIZE - 1);
+                for (LookupResponse response : batch) {
+                    process(response);
+                }
+                batch.clear();
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                logger.debug("Interrupted! Aborting processing");
+                shutDown();
+            }
+        }
+        logger.debug("Exiting run method");
+    }
 
-                    createAddRequests(
-                            response,
-                            getMaxDistance(),
-                            getLookupRequestQueue(),
-                            getLookupRequestsMadeForTerms());
 
-                    persistInDb(response);
+    /**
+     * Collects the responses of the current layer until all its lookups are done, then writes them and requests
+     * the lookups of the next layer. Requests are handed to the request workers as the request queue has room for
+     * them, so that the responses keep being drained meanwhile.
+     */
+    private void runLevelSynchronous() {
+        List<LookupResponse> layer = new ArrayList<>();
+        while (isRunning()) {
+            try {
+                getRequestBacklog().feed();
+                LookupResponse response = getLookupResponseQueue().poll(RESPONSE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (response != null) {
+                    layer.add(response);
+                    getLookupResponseQueue().drainTo(layer);
+                } else if (!layer.isEmpty()
+                        && getLayerBarrier().isLayerDone()
+                        && getRequestBacklog().isEmpty()
+                        && getLookupResponseQueue().isEmpty()) {
+                    processLayer(layer);
+                    layer = new ArrayList<>();
                 }
-                Thread.sleep(10);
             } catch (InterruptedException e) {
                 logger.debug("Interrupted! Aborting processing");
                 shutDown();
-            } catch (Exception e) {
-                logger.error("Caught exception: {}", e.getMessage(), e);
             }
         }
         logger.debug("Exiting run method");
     }
 
 
+    /**
+     * Writes the responses of a layer in one transaction, and puts the lookups of the next layer in the backlog.
+     * The responses are handled in the order of their terms, so that a crawl is reproducible regardless of the
+     * order in which the responses arrived. A response that cannot be parsed is left out of the layer as a whole,
+     * rather than being partially written.
+     */
+    private void processLayer(List<LookupResponse> layer) {
+        Collections.sort(layer, new Comparator<LookupResponse>() {
+            @Override
+            public int compare(LookupResponse r1, LookupResponse r2) {
+                int result = r1.getLanguageCode().compareTo(r2.getLanguageCode());
+                return result != 0 ? result : r1.getTargetTerm().compareTo(r2.getTargetTerm());
+            }
+        });
+        int distance = layer.get(0).getCurrentDistance() - 1;
+        long startTime = System.currentTimeMillis();
+        List<LookupResponse> validResponses = new ArrayList<>(layer.size());
+        for (LookupResponse response : layer) {
+            try {
+                validate(response);
+                validResponses.add(response);
+            } catch (JSONException e) {
+                logger.error("Caught exception: {}. Skipping the response for \"{}\"",
+                        e.getMessage(), response.getTargetTerm());
+            }
+        }
+        layer = validResponses;
+        getLayerBarrier().setWriting(true);
+        try {
+            persistInDb(layer);
+            getCrawlBudget().setNumNodes(getTermsPersisted().size());
+
+            for (LookupResponse response : layer) {
+                String termKey = getTermKey(getTermCanonicalizer().canonicalize(response.getTargetTerm()),
+                        response.getLanguageCode());
+                if (!getLookupRequestsMadeForTerms().containsKey(termKey)) {
+                    getLookupRequestsMadeForTerms().put(termKey, 1);
+                }
+            }
+            int numRequestsSpawned = 0;
+            for (LookupResponse response : layer) {
+                int n = createAddRequests(
+                        response,
+                        getMaxDistance(),
+                        getLookupRequestsMadeForTerms(),
+                        getCrawlBudget());
+                LookupEvents.responseParsed(response, n);
+                numRequestsSpawned += n;
+            }
+            logger.info("Wrote the {} responses at distance {} in {} ms. The next layer has {} lookups",
+                    layer.size(), distance, System.currentTimeMillis() - startTime, numRequestsSpawned);
+        } catch (Exception e) {
+            logger.error("Could not write the responses at distance {}: {}. Failing the crawl",
+                    distance, e.getMessage(), e);
+            getLayerBarrier().setFailed(true);
+        } finally {
+            getLayerBarrier().setWriting(false);
+        }
+    }
+
+
+    /**
+     * Writes a response, and then puts the lookups it spawns in the backlog, so that a response that cannot be
+     * written does not spawn lookups either.
+     */
+    private void process(LookupResponse response) {
+        CrawlJob job = response.getJob();
+        try {
+            persistInDb(Collections.singletonList(response));
+            getCrawlBudget().setNumNodes(getTermsPersisted().size());
+
+            int numRequestsSpawned = 0;
+            if (job == null) {
+                numRequestsSpawned = createAddRequests(
+                        response,
+                        getMaxDistance(),
+                        getLookupRequestsMadeForTerms(),
+                        getCrawlBudget());
+            } else if (!job.isCancelled()) {
+                numRequestsSpawned = createAddRequests(
+                        response,
+                        job.getMaxDistance(),
+                        job.getLookupRequestsMadeForTerms(),
+                        job.getCrawlBudget());
+            }
+            LookupEvents.responseParsed(response, numRequestsSpawned);
+            if (job != null) {
+                job.getCrawlBudget().setNumNodes(job.getLookupRequestsMadeForTerms().size());
+            }
+        } catch (Exception e) {
+            logger.error("Caught exception: {}", e.getMessage(), e);
+        } finally {
+            if (job != null) {
+                job.lookupDone();
+            }
+        }
+    }
+
+
     String getStatisticsMessage(boolean verbose) {
         StringBuilder s = new StringBuilder("Processed a total of ")
                 .append(getTermsPersisted().size())
-                .append(" unique terms");
+                .append(" unique terms, with ")
+                .append(getSemanticLabelDictionary().size())
+                .append(" distinct semantic labels");
 
         if (verbose) {
             for (Map.Entry<String, Integer> entry : getTermsPersisted().entrySet()) {
@@ -113,50 +303,280 @@ class LexiconLookupResponseWorker implements Runnable {
     }
 
 
-    private void persistInDb(LookupResponse response) throws JSONException {
-        try (Transaction tx = getNeo4jDb().beginTx()) {
+    /**
+     * Writes responses in a single transaction. The semantic labels and snapshot changes recorded while writing them
+     * are only made permanent once the transaction has been closed without failing, and are dropped otherwise.
+     */
+    private void persistInDb(List<LookupResponse> responses) throws JSONException {
+        boolean committed = false;
+        try {
+            try (Transaction tx = getNeo4jDb().beginTx()) {
+                for (LookupResponse response : responses) {
+                    Object event = LookupEvents.beginPersist();
+                    writeResponse(response);
+                    LookupEvents.endPersist(event, response);
+                }
+                tx.success();
+            }
+            // Only once the transaction has been closed is it known to be committed.
+            committed = true;
+        } finally {
+            if (committed) {
+                commitDictionaries();
+            } else {
+                rollbackDictionaries();
+            }
+        }
+    }
+
+
+    /**
+     * Makes the semantic labels and snapshot changes of a committed transaction permanent.
+     */
+    private void commitDictionaries() {
+        getSemanticLabelDictionary().commit();
+        if (isSnapshot()) {
+            getSnapshotLog().commit();
+        }
+    }
+
+
+    private void rollbackDictionaries() {
+        getSemanticLabelDictionary().rollback();
+        if (isSnapshot()) {
+            getSnapshotLog().rollback();
+        }
+    }
+
 
-            Node targetTerm = createTargetTermNode(response);
-
-            JSONArray n = response.getPayload().getJSONArray("semanticallySimilarWordFilaments");
-            for (int i = 0; i < n.length(); i++) {
-                JSONArray labels = n.getJSONObject(i).getJSONArray("labels");
-                String semanticLabel = createSemanticLabel(labels);
-                JSONArray words = n.getJSONObject(i).getJSONArray("words");
-                for (int j = 0; j < words.length(); j++) {
-                    updateTermsPersisted(getTermsPersisted(), words.getJSONObject(j).getString("word"));
-                    Node node = getOrCreateNode(getNeo4jDb(), words.getJSONObject(j).getString("word"));
-                    node.addLabel(TermLabel.TERM);
-
-                    Iterable<Relationship> relationships = targetTerm.getRelationships();
-                    boolean shouldConnect = true;
-                    for (Relationship relationship : relationships) {
-                        if (relationship.getOtherNode(targetTerm).equals(node)
-                                && relationship.hasProperty("semanticLabel")
-                                && relationship.getProperty("semanticLabel").equals(semanticLabel)) {
-                            shouldConnect = false;
-                            break;
-                        }
+    /**
+     * Reads everything from a response that writing it and spawning its lookups will read, so that a response that
+     * cannot be parsed is found before anything of it is written.
+     *
+     * @throws JSONException if the response cannot be parsed.
+     */
+    private void validate(LookupResponse response) throws JSONException {
+        response.getFrequency();
+        response.getDocumentFrequency();
+        response.getAbsoluteRank();
+        response.getRelativeRank();
+        JSONArray n = response.getPayload().getJSONArray("semanticallySimilarWordFilaments");
+        for (int i = 0; i < n.length(); i++) {
+            createSemanticLabel(n.getJSONObject(i).getJSONArray("labels"));
+            JSONArray words = n.getJSONObject(i).getJSONArray("words");
+            for (int j = 0; j < words.length(); j++) {
+                words.getJSONObject(j).getString("word");
+                words.getJSONObject(j).getDouble("strength");
+            }
+        }
+        response.getSemanticallySimilarTerms();
+    }
+
+
+    /**
+     * Writes the target term of a response, its similar terms, and the relationships between them. Must be called
+     * within a transaction.
+     */
+    private void writeResponse(LookupResponse response) throws JSONException {
+        String targetTermName = getTermCanonicalizer().canonicalize(response.getTargetTerm());
+        Node targetTerm = createTargetTermNode(response, targetTermName);
+        if (isLevelSynchronous()) {
+            setMinDistance(targetTerm, response.getCurrentDistance() - 1);
+        }
+        Map<Long, Map<Integer, Relationship>> neighbors = getNeighborRelationships(targetTerm);
+        Map<String, Double> snapshotNeighbors = isSnapshot() ? new LinkedHashMap<String, Double>() : null;
+        Map<Integer, String> semanticLabels = isSnapshot() ? new HashMap<Integer, String>() : null;
+
+        JSONArray n = response.getPayload().getJSONArray("semanticallySimilarWordFilaments");
+        for (int i = 0; i < n.length(); i++) {
+            JSONArray labels = n.getJSONObject(i).getJSONArray("labels");
+            String semanticLabel = createSemanticLabel(labels);
+            int semanticLabelId = getSemanticLabelDictionary().getId(semanticLabel);
+            if (isSnapshot()) {
+                semanticLabels.put(semanticLabelId, semanticLabel);
+            }
+            JSONArray words = n.getJSONObject(i).getJSONArray("words");
+            for (int j = 0; j < words.length(); j++) {
+                String word = getTermCanonicalizer().canonicalize(words.getJSONObject(j).getString("word"));
+                if (getTermCanonicalizer().isEnabled() && word.equals(targetTermName)) {
+                    // A variant of the term itself.
+                    continue;
+                }
+                updateTermsPersisted(getTermsPersisted(), getTermKey(word, response.getLanguageCode()));
+                Node node = getOrCreateNode(getNeo4jDb(), word, response.getLanguageCode());
+                node.addLabel(TermLabel.TERM);
+                if (isLevelSynchronous()) {
+                    setMinDistance(node, response.getCurrentDistance());
+                }
+                double strength = words.getJSONObject(j).getDouble("strength");
+                if (isSnapshot() && !snapshotNeighbors.containsKey(SnapshotLog.getNeighborKey(semanticLabelId, word))) {
+                    snapshotNeighbors.put(SnapshotLog.getNeighborKey(semanticLabelId, word), strength);
+                }
+
+                Map<Integer, Relationship> relationships = neighbors.get(node.getId());
+                if (relationships == null) {
+                    relationships = new HashMap<>();
+                    neighbors.put(node.getId(), relationships);
+                }
+                Relationship existing = relationships.get(semanticLabelId);
+                if (existing == null) {
+                    Relationship relationship = targetTerm.createRelationshipTo(node, getRelationType(strength));
+                    relationship.setProperty("semanticLabelId", semanticLabelId);
+                    relationship.setProperty("strength", strength);
+                    if (isUndirected()) {
+                        relationship.setProperty("sourceStrength", strength);
+                    }
+                    if (getStrengthBuckets() != null && !getStrengthBuckets().isExclusive()) {
+                        createBucketCopy(relationship, getStrengthBuckets().getRelationType(strength));
                     }
-                    if (shouldConnect) {
-                        Relationship relationship = targetTerm.createRelationshipTo(node, TermRelation.NEIGHBOR);
-                        relationship.setProperty("semanticLabel", semanticLabel);
-                        relationship.setProperty("strength", words.getJSONObject(j).getDouble("strength"));
+                    relationships.put(semanticLabelId, relationship);
+                } else if (isUndirected()
+                        && !node.equals(targetTerm)
+                        && existing.getStartNode().equals(node)
+                        && !existing.hasProperty("targetStrength")) {
+                    // The relationship was created when looking up the other term. Record the strength
+                    // in this direction on it, rather than creating a second relationship.
+                    double sourceStrength = (Double) existing.getProperty(
+                            "sourceStrength", existing.getProperty("strength"));
+                    existing.setProperty("sourceStrength", sourceStrength);
+                    existing.setProperty("targetStrength", strength);
+                    existing.setProperty("strength",
+                            getUndirectedStrengthCombination().combine(sourceStrength, strength));
+                    if (getStrengthBuckets() != null) {
+                        relationships.put(semanticLabelId, updateStrengthBucket(existing));
                     }
                 }
             }
-            tx.success();
+        }
+        if (isSnapshot()) {
+            getSnapshotLog().update(
+                    targetTerm, targetTermName, response.getLanguageCode(), snapshotNeighbors, semanticLabels);
+        }
+    }
+
+
+    /**
+     * Stores the given distance from the starting terms on a node, unless it already has a shorter one.
+     */
+    private void setMinDistance(Node node, int distance) {
+        if ((Integer) node.getProperty("distance", Integer.MAX_VALUE) > distance) {
+            node.setProperty("distance", distance);
         }
     }
 
 
-    private Node getOrCreateNode(GraphDatabaseService graphDb, String term) {
+    /**
+     * Collects, for each node connected to the given one, the connecting relationships by the ids of their semantic
+     * labels. Relationships written by earlier versions carry the label text itself, and are mapped through the
+     * dictionary.
+     */
+    private Map<Long, Map<Integer, Relationship>> getNeighborRelationships(Node node) {
+        Map<Long, Map<Integer, Relationship>> result = new HashMap<>();
+        for (Relationship relationship : node.getRelationships()) {
+            Integer semanticLabelId = null;
+            if (relationship.hasProperty("semanticLabelId")) {
+                semanticLabelId = (Integer) relationship.getProperty("semanticLabelId");
+            } else if (relationship.hasProperty("semanticLabel")) {
+                semanticLabelId = getSemanticLabelDictionary().getId((String) relationship.getProperty("semanticLabel"));
+            }
+            if (semanticLabelId == null) {
+                continue;
+            }
+            long otherNodeId = relationship.getOtherNode(node).getId();
+            Map<Integer, Relationship> relationships = result.get(otherNodeId);
+            if (relationships == null) {
+                relationships = new HashMap<>();
+                result.put(otherNodeId, relationships);
+            }
+            // Prefer the generic relationship over its strength bucket copy, when both are present.
+            Relationship previous = relationships.get(semanticLabelId);
+            if (previous == null
+                    || (!previous.isType(TermRelation.NEIGHBOR) && relationship.isType(TermRelation.NEIGHBOR))) {
+                relationships.put(semanticLabelId, relationship);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Returns the type of a new relationship with the given strength: its strength bucket if bucketed
+     * relationships replace the generic ones, or NEIGHBOR otherwise.
+     */
+    private TermRelation getRelationType(double strength) {
+        if (getStrengthBuckets() != null && getStrengthBuckets().isExclusive()) {
+            return getStrengthBuckets().getRelationType(strength);
+        }
+        return TermRelation.NEIGHBOR;
+    }
+
+
+    /**
+     * Moves a relationship whose strength has changed into the matching strength bucket. Since the type of a
+     * relationship cannot be changed, a bucketed relationship is replaced by a copy of the right type.
+     *
+     * @return the relationship to keep track of in place of the given one.
+     */
+    private Relationship updateStrengthBucket(Relationship relationship) {
+        TermRelation bucket = getStrengthBuckets().getRelationType((Double) relationship.getProperty("strength"));
+        if (getStrengthBuckets().isExclusive()) {
+            if (relationship.isType(bucket)) {
+                return relationship;
+            }
+            Relationship result = copyRelationship(relationship, bucket);
+            relationship.delete();
+            return result;
+        }
+
+        Object semanticLabelId = relationship.getProperty("semanticLabelId", null);
+        for (Relationship copy : relationship.getStartNode().getRelationships(Direction.OUTGOING,
+                TermRelation.NEIGHBOR_STRONG, TermRelation.NEIGHBOR_MEDIUM, TermRelation.NEIGHBOR_WEAK)) {
+            if (copy.getEndNode().equals(relationship.getEndNode())
+                    && Objects.equals(semanticLabelId, copy.getProperty("semanticLabelId", null))) {
+                copy.delete();
+            }
+        }
+        createBucketCopy(relationship, bucket);
+        return relationship;
+    }
+
+
+    /**
+     * Creates the strength bucket copy of a NEIGHBOR relationship. It only carries what is needed to prune by strength
+     * and to tell its semantic label, since the NEIGHBOR relationship holds the rest.
+     */
+    private void createBucketCopy(Relationship relationship, TermRelation bucket) {
+        Relationship copy = relationship.getStartNode().createRelationshipTo(relationship.getEndNode(), bucket);
+        for (String property : BUCKET_COPY_PROPERTIES) {
+            if (relationship.hasProperty(property)) {
+                copy.setProperty(property, relationship.getProperty(property));
+            }
+        }
+    }
+
+
+    private Relationship copyRelationship(Relationship relationship, RelationshipType type) {
+        Relationship result = relationship.getStartNode().createRelationshipTo(relationship.getEndNode(), type);
+        for (Map.Entry<String, Object> property : relationship.getAllProperties().entrySet()) {
+            result.setProperty(property.getKey(), property.getValue());
+        }
+        return result;
+    }
+
+
+    private Node getOrCreateNode(GraphDatabaseService graphDb, String term, String languageCode) {
         Node result;
         ResourceIterator<Node> resultIterator;
         try (Transaction tx = graphDb.beginTx()) {
-            String queryString = "MERGE (n:TERM {name: {name}}) RETURN n";
+            String languageLabel = getLanguageLabel(languageCode).name();
+            String queryString = isMultiLanguage()
+                    ? "MERGE (n:`" + languageLabel + "` {name: {name}}) "
+                            + "ON CREATE SET n:TERM, n.language = {language} RETURN n"
+                    : "MERGE (n:TERM {name: {name}}) "
+                            + "ON CREATE SET n:`" + languageLabel + "`, n.language = {language} RETURN n";
             Map<String, Object> parameters = new HashMap<>();
             parameters.put("name", term);
+            parameters.put("language", languageCode);
             resultIterator = graphDb.execute(queryString, parameters).columnAs("n");
             result = resultIterator.next();
             tx.success();
@@ -190,11 +610,11 @@ class LexiconLookupResponseWorker implements Runnable {
     }
 
 
-    private Node createTargetTermNode(LookupResponse response) throws JSONException {
-        Node targetTerm = getOrCreateNode(getNeo4jDb(), response.getTargetTerm());
+    private Node createTargetTermNode(LookupResponse response, String name) throws JSONException {
+        Node targetTerm = getOrCreateNode(getNeo4jDb(), name, response.getLanguageCode());
         targetTerm.addLabel(TermLabel.TERM);
         if (!targetTerm.hasProperty("numTokens")) {
-            targetTerm.setProperty("numTokens", computeNumWhitespaces(response.getTargetTerm()) + 1);
+            targetTerm.setProperty("numTokens", computeNumWhitespaces(name) + 1);
         }
         if (!targetTerm.hasProperty("frequency")) {
             targetTerm.setProperty("frequency", response.getFrequency());
@@ -212,42 +632,65 @@ class LexiconLookupResponseWorker implements Runnable {
     }
 
 
-    private void createAddRequests(
+    private int createAddRequests(
             LookupResponse response,
             int maxDistance,
-            BlockingQueue<LookupRequest> lookupRequestQueue,
-            Map<String, Integer> lookupRequestsMadeForTerms) throws JSONException {
-
-        if (response.getCurrentDistance() <= maxDistance) {
-            List<String> terms = response.getSemanticallySimilarTerms();
-            for (String term : terms) {
+            Map<String, Integer> lookupRequestsMadeForTerms,
+            CrawlBudget crawlBudget) throws JSONException {
+
+        int numRequestsSpawned = 0;
+        if (crawlBudget.isExhausted() || getCrawlBudget().isExhausted()) {
+            logger.debug("Not spawning new requests for \"{}\": {}", response.getTargetTerm(),
+                    crawlBudget.isExhausted()
+                            ? crawlBudget.getExhaustionReason()
+                            : getCrawlBudget().getExhaustionReason());
+        } else if (response.getCurrentDistance() <= maxDistance) {
+            List<String> terms = response.getSemanticallySimilarTerms(crawlBudget.getMaxNeighborsPerTerm());
+            for (String similarTerm : terms) {
+                String term = getTermCanonicalizer().canonicalize(similarTerm);
                 // Avoid issuing requests containing slash since a bug in the API prevents them from being fulfilled.
                 if (term.contains("/")) {
                     continue;
                 }
-                if (!lookupRequestsMadeForTerms.containsKey(term)) {
-                    lookupRequestQueue.add(new LookupRequest(term, response.getLanguageCode(), response.getCurrentDistance()));
-                    lookupRequestsMadeForTerms.put(term, 1);
+                String termKey = getTermKey(term, response.getLanguageCode());
+                if (!lookupRequestsMadeForTerms.containsKey(termKey)) {
+                    LookupRequest request = new LookupRequest(
+                            term, response.getLanguageCode(), response.getCurrentDistance(), response.getJob());
+                    LookupEvents.requestEnqueued(request);
+                    getRequestBacklog().add(request);
+                    lookupRequestsMadeForTerms.put(termKey, 1);
+                    numRequestsSpawned++;
                 } else {
-                    Integer c = lookupRequestsMadeForTerms.get(term);
-                    lookupRequestsMadeForTerms.put(term, ++c);
+                    Integer c = lookupRequestsMadeForTerms.get(termKey);
+                    lookupRequestsMadeForTerms.put(termKey, ++c);
                 }
             }
         } else {
             logger.debug("Not spawning new requests. Current distance: {}, max distance: {}",
                     response.getCurrentDistance(), maxDistance);
         }
+        return numRequestsSpawned;
     }
 
 
+    /**
+     * Counts the runs of whitespace between the tokens of the input, so that a term with n tokens has n - 1 of
+     * them, regardless of the kind and amount of whitespace separating the tokens.
+     */
     private int computeNumWhitespaces(String input) {
         int numSpaces = 0;
-        int i = 0;
-        while (i < input.length()) {
-            if (input.charAt(i) == ' ') {
-                numSpaces++;
+        boolean isInToken = false;
+        boolean hasToken = false;
+        for (int i = 0; i < input.length(); i++) {
+            if (TermCanonicalizer.isWhitespace(input.charAt(i))) {
+                isInToken = false;
+            } else {
+                if (!isInToken && hasToken) {
+                    numSpaces++;
+                }
+                isInToken = true;
+                hasToken = true;
             }
-            i++;
         }
         return numSpaces;
     }
@@ -255,16 +698,107 @@ class LexiconLookupResponseWorker implements Runnable {
 
     private void setUpDbConstraint() {
         try (Transaction tx = getNeo4jDb().beginTx()) {
-            try {
-                getNeo4jDb().schema()
-                        .constraintFor(TermLabel.TERM)
-                        .assertPropertyIsUnique("name")
-                        .create();
-            } catch (ConstraintViolationException e) {
-                logger.warn("Database constraint already exists!");
+            Iterator<ConstraintDefinition> constraints =
+                    getNeo4jDb().schema().getConstraints(TermLabel.TERM).iterator();
+            setMultiLanguage(isMultiLanguageDb(constraints.hasNext()));
+            if (isMultiLanguage()) {
+                // The same name may occur in several languages. Names are unique per language label instead.
+                if (constraints.hasNext()) {
+                    checkTermsHaveLanguage();
+                }
+                while (constraints.hasNext()) {
+                    logger.info("Dropping the uniqueness of term names across languages");
+                    constraints.next().drop();
+                }
+            } else {
+                try {
+                    getNeo4jDb().schema()
+                            .constraintFor(TermLabel.TERM)
+                            .assertPropertyIsUnique("name")
+                            .create();
+                } catch (ConstraintViolationException e) {
+                    logger.warn("Database constraint already exists!");
+                }
             }
             tx.success();
         }
+        for (String languageCode : getLanguageCodes()) {
+            try (Transaction tx = getNeo4jDb().beginTx()) {
+                if (!getNeo4jDb().schema().getConstraints(getLanguageLabel(languageCode)).iterator().hasNext()) {
+                    getNeo4jDb().schema()
+                            .constraintFor(getLanguageLabel(languageCode))
+                            .assertPropertyIsUnique("name")
+                            .create();
+                }
+                tx.success();
+            }
+        }
+    }
+
+
+    /**
+     * Tells whether terms are to be told apart by their language: if the database has been, or is now being, crawled
+     * in several languages. Once names are no longer unique across languages, they stay that way, even for a crawl in
+     * a single language. Its terms would otherwise be matched by name alone, with those of any language.
+     *
+     * @param hasTermConstraint true if term names are unique in the database.
+     */
+    private boolean isMultiLanguageDb(boolean hasTermConstraint) {
+        Set<String> languageLabels = new HashSet<>();
+        for (String languageCode : getLanguageCodes()) {
+            languageLabels.add(getLanguageLabel(languageCode).name());
+        }
+        // Each language crawled has had a uniqueness constraint on its label.
+        for (ConstraintDefinition constraint : getNeo4jDb().schema().getConstraints()) {
+            String label = constraint.getLabel().name();
+            if (constraint.isConstraintType(ConstraintType.UNIQUENESS)
+                    && !label.equals(TermLabel.TERM.name())
+                    && !label.equals(SemanticLabelDictionary.DictionaryLabel.SEMANTIC_LABEL.name())) {
+                languageLabels.add(label);
+            }
+        }
+        boolean hasTerms;
+        try (ResourceIterator<Node> terms = getNeo4jDb().findNodes(TermLabel.TERM)) {
+            hasTerms = terms.hasNext();
+        }
+        boolean result = languageLabels.size() > 1 || (hasTerms && !hasTermConstraint);
+        if (result && getLanguageCodes().size() == 1) {
+            logger.info("The database has been crawled in several languages. Telling terms apart by language");
+        }
+        return result;
+    }
+
+
+    /**
+     * Checks, before a database crawled in a single language is switched to several, that all its terms have a
+     * language. Terms written by versions that did not record it would no longer be found by their language label,
+     * and would be duplicated. Their language cannot be told, so the crawl is refused instead.
+     *
+     * @throws IllegalStateException if there are terms without a language.
+     */
+    private void checkTermsHaveLanguage() {
+        long numTerms = (Long) getNeo4jDb()
+                .execute("MATCH (n:TERM) WHERE NOT exists(n.language) RETURN count(n) AS numTerms")
+                .columnAs("numTerms")
+                .next();
+        if (numTerms > 0) {
+            throw new IllegalStateException("The database holds " + numTerms + " terms without a language, "
+                    + "which a crawl in several languages would duplicate. Give them their language first, e.g. "
+                    + "MATCH (n:TERM) WHERE NOT exists(n.language) SET n:EN, n.language = 'en'");
+        }
+    }
+
+
+    /**
+     * Returns the key by which a term is tracked: its name, qualified by its language when crawling several.
+     */
+    private String getTermKey(String term, String languageCode) {
+        return isMultiLanguage() ? term + "@" + languageCode : term;
+    }
+
+
+    static Label getLanguageLabel(String languageCode) {
+        return new LanguageLabel(languageCode.toUpperCase(Locale.ROOT));
     }
 
 
@@ -288,8 +822,8 @@ class LexiconLookupResponseWorker implements Runnable {
     }
 
 
-    private BlockingQueue<LookupRequest> getLookupRequestQueue() {
-        return lookupRequestQueue;
+    private RequestBacklog getRequestBacklog() {
+        return requestBacklog;
     }
 
 
@@ -305,6 +839,9 @@ class LexiconLookupResponseWorker implements Runnable {
 
     private void shutDown() {
         setRunning(false);
+        if (isSnapshot()) {
+            getSnapshotLog().close();
+        }
         getNeo4jDb().shutdown();
     }
 
@@ -329,13 +866,127 @@ class LexiconLookupResponseWorker implements Runnable {
     }
 
 
-    private enum TermLabel implements Label {
+    private CrawlBudget getCrawlBudget() {
+        return crawlBudget;
+    }
+
+
+    private SemanticLabelDictionary getSemanticLabelDictionary() {
+        return semanticLabelDictionary;
+    }
+
+
+    /**
+     * Returns true if a single relationship is to be kept per pair of terms and semantic label, holding the
+     * strengths from the lookups of both terms, or false if the strength from the lookup of the first term is kept.
+     */
+    private boolean isUndirected() {
+        return getUndirectedStrengthCombination() != null;
+    }
+
+
+    private StrengthCombination getUndirectedStrengthCombination() {
+        return undirectedStrengthCombination;
+    }
+
+
+    private StrengthBuckets getStrengthBuckets() {
+        return strengthBuckets;
+    }
+
+
+    private Set<String> getLanguageCodes() {
+        return languageCodes;
+    }
+
+
+    private TermCanonicalizer getTermCanonicalizer() {
+        return termCanonicalizer;
+    }
+
+
+    /**
+     * Returns true if terms are told apart by their language. Decided when the database is set up.
+     */
+    private boolean isMultiLanguage() {
+        return isMultiLanguage;
+    }
+
+
+    private void setMultiLanguage(boolean isMultiLanguage) {
+        this.isMultiLanguage = isMultiLanguage;
+    }
+
+
+    private boolean isLevelSynchronous() {
+        return getLayerBarrier() != null;
+    }
+
+
+    private LayerBarrier getLayerBarrier() {
+        return layerBarrier;
+    }
+
+
+    private boolean isSnapshot() {
+        return getSnapshotLog() != null;
+    }
+
+
+    private SnapshotLog getSnapshotLog() {
+        return snapshotLog;
+    }
+
+
+    enum TermLabel implements Label {
         TERM
     }
 
 
-    private enum TermRelation implements RelationshipType {
-        NEIGHBOR
+    /**
+     * The label telling the language of a term. Neo4j's own factory method, Label.label, is a static interface
+     * method, which cannot be called from Java 1.7 code, and DynamicLabel is deprecated.
+     */
+    private static final class LanguageLabel implements Label {
+
+        private final String name;
+
+
+        LanguageLabel(String name) {
+            this.name = name;
+        }
+
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Label && ((Label) o).name().equals(name());
+        }
+
+
+        @Override
+        public int hashCode() {
+            return name().hashCode();
+        }
+
+
+        @Override
+        public String toString() {
+            return name();
+        }
+    }
+
+
+    enum TermRelation implements RelationshipType {
+        NEIGHBOR,
+        NEIGHBOR_STRONG,
+        NEIGHBOR_MEDIUM,
+        NEIGHBOR_WEAK
     }
 
 }
@@ -0,0 +1,142 @@
+package se.fredrikolsson.gavagai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Class emitting Java Flight Recorder events for each stage in the life of a lookup: when a request is
+ * enqueued, dequeued, sent to the Lexicon API and retried, and when its response is queued, parsed and persisted.
+ * Each event carries the term, its distance from a starting term, and the number of earlier lookup attempts.
+ * <p>
+ * Events are only built when they are enabled in a running recording, for instance with
+ * <code>-XX:StartFlightRecording</code>, so the overhead is negligible otherwise. On a JVM without Flight
+ * Recorder, all methods do nothing.
+ * <p>
+ * The event types are defined by <code>FlightRecorderLookupEvents</code>, the {@link Recorder} using the
+ * <code>jdk.jfr</code> API. It is compiled separately, by the <code>jfr</code> build profile, only when building
+ * with JDK 11 or later, and is loaded by name, so that the rest of the code keeps to Java 1.7. A jar built with an
+ * older JDK emits no events.
+ */
+final class LookupEvents {
+
+    private static Logger logger = LoggerFactory.getLogger(LookupEvents.class);
+
+    private static final String RECORDER_CLASS_NAME = "se.fredrikolsson.gavagai.FlightRecorderLookupEvents";
+    private static final Recorder RECORDER = loadRecorder();
+
+
+    private LookupEvents() {
+    }
+
+
+    static void requestEnqueued(LookupRequest request) {
+        request.setEnqueueTime(System.nanoTime());
+        if (RECORDER != null) {
+            RECORDER.requestEnqueued(request);
+        }
+    }
+
+
+    static void requestDequeued(LookupRequest request) {
+        if (RECORDER != null) {
+            RECORDER.requestDequeued(request);
+        }
+    }
+
+
+    /**
+     * Marks the start of a call to the Lexicon API.
+     *
+     * @return a token to pass to {@link #endApiCall}.
+     */
+    static Object beginApiCall() {
+        return RECORDER != null ? RECORDER.beginApiCall() : null;
+    }
+
+
+    static void endApiCall(Object token, LookupRequest request, int httpStatus) {
+        if (token != null) {
+            RECORDER.endApiCall(token, request, httpStatus);
+        }
+    }
+
+
+    static void requestRetried(LookupRequest request, String reason) {
+        if (RECORDER != null) {
+            RECORDER.requestRetried(request, reason);
+        }
+    }
+
+
+    static void responseQueued(LookupResponse response) {
+        if (RECORDER != null) {
+            RECORDER.responseQueued(response);
+        }
+    }
+
+
+    static void responseParsed(LookupResponse response, int numRequestsSpawned) {
+        if (RECORDER != null) {
+            RECORDER.responseParsed(response, numRequestsSpawned);
+        }
+    }
+
+
+    /**
+     * Marks the start of the transaction persisting a response.
+     *
+     * @return a token to pass to {@link #endPersist}.
+     */
+    static Object beginPersist() {
+        return RECORDER != null ? RECORDER.beginPersist() : null;
+    }
+
+
+    static void endPersist(Object token, LookupResponse response) {
+        if (token != null) {
+            RECORDER.endPersist(token, response);
+        }
+    }
+
+
+    private static Recorder loadRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event");
+        } catch (ClassNotFoundException e) {
+            logger.debug("Java Flight Recorder is not available. No lookup events will be emitted.");
+            return null;
+        }
+        try {
+            return (Recorder) Class.forName(RECORDER_CLASS_NAME).newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            logger.debug("The Flight Recorder events were not built into this jar. No lookup events will be emitted.");
+            return null;
+        }
+    }
+
+
+    /**
+     * Emits the Flight Recorder events. The tokens returned by the begin methods are passed back to the end methods,
+     * and are null if the event is not enabled.
+     */
+    interface Recorder {
+
+        void requestEnqueued(LookupRequest request);
+
+        void requestDequeued(LookupRequest request);
+
+        Object beginApiCall();
+
+        void endApiCall(Object token, LookupRequest request, int httpStatus);
+
+        void requestRetried(LookupRequest request, String reason);
+
+        void responseQueued(LookupResponse response);
+
+        void responseParsed(LookupResponse response, int numRequestsSpawned);
+
+        Object beginPersist();
+
+        void endPersist(Object token, LookupResponse response);
+    }
+}
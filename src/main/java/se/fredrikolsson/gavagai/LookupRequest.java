@@ -7,19 +7,29 @@ class LookupRequest {
 
     private final String term;
     private final String languageCode;
+    private final CrawlJob job;
     private int distance;
     private int numberOfLookupAttempts = 0;
+    private long enqueueTime;
 
 
     LookupRequest(String term, String languageCode) {
-        this.term = term;
-        this.languageCode = languageCode;
-        setDistance(0);
+        this(term, languageCode, 0);
     }
 
 
     LookupRequest(String term, String languageCode, int currentDistance) {
-        this(term, languageCode);
+        this(term, languageCode, currentDistance, null);
+    }
+
+
+    /**
+     * @param job the daemon job the lookup is made for, or null if not running as a daemon.
+     */
+    LookupRequest(String term, String languageCode, int currentDistance, CrawlJob job) {
+        this.term = term;
+        this.languageCode = languageCode;
+        this.job = job;
         setDistance(currentDistance);
     }
 
@@ -34,6 +44,11 @@ class LookupRequest {
     }
 
 
+    CrawlJob getJob() {
+        return job;
+    }
+
+
     int getDistance() {
         return distance;
     }
@@ -54,6 +69,16 @@ class LookupRequest {
     }
 
 
+    long getEnqueueTime() {
+        return enqueueTime;
+    }
+
+
+    void setEnqueueTime(long enqueueTime) {
+        this.enqueueTime = enqueueTime;
+    }
+
+
     public String toString() {
         return "LookupRequest[" +
                 "term=" +
@@ -7,7 +7,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Class holding the information resulting from looking up a term in Gavagai's semantic memories.
@@ -18,13 +22,32 @@ class LookupResponse {
     private final JSONObject payload;
     private final int currentDistance;
     private final String languageCode;
+    private final int numberOfLookupAttempts;
+    private final CrawlJob job;
     private String targetTerm;
 
 
     LookupResponse(JSONObject payload, int currentDistance, String languageCode, String targetTerm) {
+        this(payload, currentDistance, languageCode, targetTerm, 0);
+    }
+
+
+    LookupResponse(JSONObject payload, int currentDistance, String languageCode, String targetTerm,
+                   int numberOfLookupAttempts) {
+        this(payload, currentDistance, languageCode, targetTerm, numberOfLookupAttempts, null);
+    }
+
+
+    /**
+     * @param job the daemon job the lookup was made for, or null if not running as a daemon.
+     */
+    LookupResponse(JSONObject payload, int currentDistance, String languageCode, String targetTerm,
+                   int numberOfLookupAttempts, CrawlJob job) {
         this.payload = payload;
         this.currentDistance = currentDistance;
         this.languageCode = languageCode;
+        this.numberOfLookupAttempts = numberOfLookupAttempts;
+        this.job = job;
         setTargetTerm(targetTerm);
     }
 
@@ -44,6 +67,16 @@ class LookupResponse {
     }
 
 
+    int getNumberOfLookupAttempts() {
+        return numberOfLookupAttempts;
+    }
+
+
+    CrawlJob getJob() {
+        return job;
+    }
+
+
     private void setTargetTerm(String targetTerm) {
         this.targetTerm = targetTerm;
     }
@@ -118,6 +151,51 @@ class LookupResponse {
     }
 
 
+    /**
+     * Returns the semantically similar terms of the target term, strongest first, keeping at most
+     * <code>maxNumTerms</code> of them. A term occurring in several filaments is ranked by its highest strength.
+     *
+     * @param maxNumTerms the maximum number of terms to return, or {@link CrawlBudget#UNLIMITED} to return all.
+     */
+    List<String> getSemanticallySimilarTerms(int maxNumTerms) throws JSONException {
+        if (maxNumTerms == CrawlBudget.UNLIMITED) {
+            return getSemanticallySimilarTerms();
+        }
+        if (getPayload() == null) {
+            return new ArrayList<>();
+        }
+        JSONArray semanticallySimilarWordFilaments = (JSONArray) getPayload().get("semanticallySimilarWordFilaments");
+        if (semanticallySimilarWordFilaments == null) {
+            return new ArrayList<>();
+        }
+        Map<String, Double> strengths = new LinkedHashMap<>();
+        for (int i = 0; i < semanticallySimilarWordFilaments.length(); i++) {
+            JSONArray words = (JSONArray) ((JSONObject) semanticallySimilarWordFilaments.get(i)).get("words");
+            for (int j = 0; j < words.length(); j++) {
+                JSONObject word = (JSONObject) words.get(j);
+                String term = word.getString("word");
+                double strength = word.optDouble("strength", 0.0);
+                Double previous = strengths.get(term);
+                if (previous == null || previous < strength) {
+                    strengths.put(term, strength);
+                }
+            }
+        }
+        List<Map.Entry<String, Double>> entries = new ArrayList<>(strengths.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Double>>() {
+            @Override
+            public int compare(Map.Entry<String, Double> a, Map.Entry<String, Double> b) {
+                return Double.compare(b.getValue(), a.getValue());
+            }
+        });
+        List<String> terms = new ArrayList<>();
+        for (int i = 0; i < entries.size() && i < maxNumTerms; i++) {
+            terms.add(entries.get(i).getKey());
+        }
+        return terms;
+    }
+
+
     public String toString() {
         return getPayload().toString();
     }
@@ -0,0 +1,278 @@
+package se.fredrikolsson.gavagai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Class responsible for holding back the request workers when the heap fills up, or when the response worker
+ * falls behind, so that a large crawl slows down instead of running out of memory.
+ * <p>
+ * The governor watches the occupancy of the old generation after garbage collection, which is what is left of the
+ * heap once the short-lived response DOMs have been collected. It is told by the JVM, through a collection usage
+ * threshold notification, when the occupancy passes the high threshold, and from then on checks it before every
+ * fetch until it has dropped below again:
+ * <ul>
+ * <li>Above the high threshold, or with the response queue more than half full, each fetch is delayed.</li>
+ * <li>Above the critical threshold, fetching is paused for as long as the response worker has responses left
+ * to write, since writing them is what frees memory. Once the response queue is empty, fetching continues,
+ * delayed, rather than pausing a crawl that cannot free any more memory.</li>
+ * </ul>
+ * When the pressure rises above the high threshold, the registered caches are cleared. A single instance is shared
+ * by all request workers.
+ */
+class MemoryGovernor implements NotificationListener {
+
+    private static Logger logger = LoggerFactory.getLogger(MemoryGovernor.class);
+
+    final static double DEFAULT_HIGH_OCCUPANCY = 0.75;
+    final static double DEFAULT_CRITICAL_OCCUPANCY = 0.9;
+
+    private final static long THROTTLE_MILLIS = 250;
+    private final static long PAUSE_RECHECK_MILLIS = 1000;
+
+    private final double highOccupancy;
+    private final double criticalOccupancy;
+    private final BlockingQueue<?> lookupResponseQueue;
+    private final List<MemoryPoolMXBean> pools;
+    private final List<Runnable> cacheShrinkers;
+    private volatile Pressure pressure;
+    private long numThrottled;
+    private long numPaused;
+    private long numCacheShrinks;
+
+
+    /**
+     * @param highOccupancy     the share of the old generation, after garbage collection, above which fetches
+     *                          are delayed.
+     * @param criticalOccupancy the share above which fetching is paused.
+     */
+    MemoryGovernor(double highOccupancy, double criticalOccupancy, BlockingQueue<?> lookupResponseQueue) {
+        checkThresholds(highOccupancy, criticalOccupancy);
+        this.highOccupancy = highOccupancy;
+        this.criticalOccupancy = criticalOccupancy;
+        this.lookupResponseQueue = lookupResponseQueue;
+        this.pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            // Of the heap pools, only the old generation supports a usage threshold.
+            if (pool.getType() == MemoryType.HEAP
+                    && pool.isUsageThresholdSupported()
+                    && pool.isCollectionUsageThresholdSupported()
+                    && pool.getUsage().getMax() > 0) {
+                pools.add(pool);
+            }
+        }
+        this.cacheShrinkers = new CopyOnWriteArrayList<>();
+        this.pressure = Pressure.NORMAL;
+    }
+
+
+    /**
+     * Parses thresholds given as <code>high,critical</code>, e.g. <code>0.75,0.9</code>.
+     *
+     * @return the high and the critical threshold.
+     */
+    static double[] parseThresholds(String thresholds) {
+        String[] values = thresholds.split(",");
+        if (values.length != 2) {
+            throw new IllegalArgumentException("Expected two heap thresholds, got \"" + thresholds + "\"");
+        }
+        double[] result = {Double.valueOf(values[0].trim()), Double.valueOf(values[1].trim())};
+        checkThresholds(result[0], result[1]);
+        return result;
+    }
+
+
+    private static void checkThresholds(double highOccupancy, double criticalOccupancy) {
+        if (!(highOccupancy > 0 && highOccupancy <= criticalOccupancy && criticalOccupancy < 1)) {
+            throw new IllegalArgumentException("Heap thresholds must satisfy 0 < high <= critical < 1, got "
+                    + highOccupancy + "," + criticalOccupancy);
+        }
+    }
+
+
+    /**
+     * Registers a cache to clear when the memory pressure rises.
+     */
+    void addCacheShrinker(Runnable cacheShrinker) {
+        getCacheShrinkers().add(cacheShrinker);
+    }
+
+
+    void start() {
+        if (getPools().isEmpty()) {
+            logger.warn("Found no heap memory pool to watch. Fetching is only held back by the response queue");
+            return;
+        }
+        for (MemoryPoolMXBean pool : getPools()) {
+            pool.setCollectionUsageThreshold((long) (pool.getUsage().getMax() * getHighOccupancy()));
+            logger.info("Watching memory pool \"{}\": fetches are delayed above {}% and paused above {}% of {} MB",
+                    pool.getName(), Math.round(getHighOccupancy() * 100), Math.round(getCriticalOccupancy() * 100),
+                    pool.getUsage().getMax() >> 20);
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+    }
+
+
+    void stop() {
+        if (getPools().isEmpty()) {
+            return;
+        }
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+        } catch (ListenerNotFoundException e) {
+            logger.debug("Memory notification listener was not registered");
+        }
+    }
+
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+            update();
+        }
+    }
+
+
+    /**
+     * Called by a request worker before it takes the next request. Returns at once when there is no pressure, and
+     * otherwise delays or pauses the worker as described above.
+     */
+    void awaitFetchPermit() throws InterruptedException {
+        boolean isThrottled = isWriterLagging();
+        if (getPressure() != Pressure.NORMAL) {
+            synchronized (this) {
+                boolean isPaused = false;
+                while (update() == Pressure.CRITICAL && !getLookupResponseQueue().isEmpty()) {
+                    isPaused = true;
+                    wait(PAUSE_RECHECK_MILLIS);
+                }
+                if (isPaused) {
+                    numPaused++;
+                }
+                isThrottled |= getPressure() != Pressure.NORMAL;
+            }
+        }
+        if (isThrottled) {
+            synchronized (this) {
+                numThrottled++;
+            }
+            Thread.sleep(THROTTLE_MILLIS);
+        }
+    }
+
+
+    synchronized String getStatisticsMessage() {
+        return "Memory governor delayed " + numThrottled + " fetches, paused fetching " + numPaused
+                + " times, and cleared caches " + numCacheShrinks + " times";
+    }
+
+
+    synchronized boolean hasIntervened() {
+        return numThrottled > 0 || numPaused > 0;
+    }
+
+
+    /**
+     * Re-computes the pressure from the occupancy of the watched pools after their last collection, and acts on
+     * any change.
+     */
+    private synchronized Pressure update() {
+        double occupancy = getOccupancy();
+        Pressure previous = getPressure();
+        Pressure current = occupancy >= getCriticalOccupancy()
+                ? Pressure.CRITICAL
+                : occupancy >= getHighOccupancy() ? Pressure.HIGH : Pressure.NORMAL;
+        if (current == previous) {
+            return current;
+        }
+        setPressure(current);
+        if (current.compareTo(previous) > 0) {
+            logger.warn("Memory pressure rose to {}: {}% of the old generation in use after collection",
+                    current, Math.round(occupancy * 100));
+            if (previous == Pressure.NORMAL) {
+                numCacheShrinks++;
+                for (Runnable cacheShrinker : getCacheShrinkers()) {
+                    cacheShrinker.run();
+                }
+            }
+        } else {
+            logger.info("Memory pressure fell to {}: {}% of the old generation in use after collection",
+                    current, Math.round(occupancy * 100));
+            notifyAll();
+        }
+        return current;
+    }
+
+
+    private double getOccupancy() {
+        double result = 0;
+        for (MemoryPoolMXBean pool : getPools()) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage == null) {
+                usage = pool.getUsage();
+            }
+            result = Math.max(result, (double) usage.getUsed() / usage.getMax());
+        }
+        return result;
+    }
+
+
+    private boolean isWriterLagging() {
+        int size = getLookupResponseQueue().size();
+        return size > getLookupResponseQueue().remainingCapacity();
+    }
+
+
+    private double getHighOccupancy() {
+        return highOccupancy;
+    }
+
+
+    private double getCriticalOccupancy() {
+        return criticalOccupancy;
+    }
+
+
+    private BlockingQueue<?> getLookupResponseQueue() {
+        return lookupResponseQueue;
+    }
+
+
+    private List<MemoryPoolMXBean> getPools() {
+        return pools;
+    }
+
+
+    private List<Runnable> getCacheShrinkers() {
+        return cacheShrinkers;
+    }
+
+
+    private Pressure getPressure() {
+        return pressure;
+    }
+
+
+    private void setPressure(Pressure pressure) {
+        this.pressure = pressure;
+    }
+
+
+    enum Pressure {
+        NORMAL, HIGH, CRITICAL
+    }
+}
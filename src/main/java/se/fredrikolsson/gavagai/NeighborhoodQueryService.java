@@ -0,0 +1,488 @@
+package se.fredrikolsson.gavagai;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Class responsible for answering neighborhood queries over a graph database previously built by
+ * {@link se.fredrikolsson.gavagai.GraphCreator}, through a small local HTTP/JSON API.
+ * <p>
+ * The database is opened read-only. Answers are kept in an LRU cache, and the adjacency of high-degree terms is
+ * read into memory at start-up, since those are the terms whose neighborhoods are the most expensive to expand.
+ * <p>
+ * Invoke {@link se.fredrikolsson.gavagai.GraphCreator} with <code>serve -h</code> to see usage information.
+ */
+class NeighborhoodQueryService implements Stoppable {
+
+    private static Logger logger = LoggerFactory.getLogger(NeighborhoodQueryService.class);
+
+    private final static int DEFAULT_PORT = 8080;
+    private final static int DEFAULT_CACHE_SIZE = 10000;
+    private final static int DEFAULT_PRECOMPUTE_MIN_DEGREE = 200;
+    private final static int DEFAULT_DEPTH = 1;
+    private final static int MAX_DEPTH = 4;
+    private final static double DEFAULT_MIN_STRENGTH = 0.0;
+
+    private final GraphDatabaseService neo4jDb;
+    private final Cache<String, String> responseCache;
+    private final Map<String, Adjacency> precomputedAdjacencies;
+    private final int precomputeMinDegree;
+    private final ExecutorService requestExecutor;
+    private HttpServer httpServer;
+    private boolean isRunning;
+
+
+    static void main(String[] args) throws Exception {
+
+        OptionSet options = null;
+        try {
+            options = new OptionParser("d:p:c:g:h").parse(args);
+        } catch (Throwable t) {
+            System.err.println("\nError: " + t.getMessage() + ". Exiting.\n");
+            NeighborhoodQueryService.printUsage();
+            System.exit(1);
+        }
+
+        if (options.has("h") || !options.has("d")) {
+            NeighborhoodQueryService.printUsage();
+            System.exit(1);
+        }
+
+        NeighborhoodQueryService service = new NeighborhoodQueryService(
+                (String) options.valueOf("d"),
+                options.has("c") ? Integer.valueOf((String) options.valueOf("c")) : DEFAULT_CACHE_SIZE,
+                options.has("g") ? Integer.valueOf((String) options.valueOf("g")) : DEFAULT_PRECOMPUTE_MIN_DEGREE);
+
+        Runtime.getRuntime().addShutdownHook(new GraphCreator.ShutDownHook(service));
+        service.start(options.has("p") ? Integer.valueOf((String) options.valueOf("p")) : DEFAULT_PORT);
+    }
+
+
+    private NeighborhoodQueryService(String neo4jDbName, int cacheSize, int precomputeMinDegree) {
+        this.neo4jDb = new GraphDatabaseFactory()
+                .newEmbeddedDatabaseBuilder(new File(neo4jDbName))
+                .setConfig(GraphDatabaseSettings.read_only, "true")
+                .newGraphDatabase();
+        this.responseCache = CacheBuilder.newBuilder().maximumSize(cacheSize).recordStats().build();
+        this.precomputedAdjacencies = new ConcurrentHashMap<>();
+        this.precomputeMinDegree = precomputeMinDegree;
+        this.requestExecutor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors() * 2, new NamingThreadFactory("queryWorker"));
+    }
+
+
+    private void start(int port) throws IOException {
+        logger.info("Starting Neighborhood Query Service");
+        precomputeAdjacencies();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/neighbors", new NeighborsHandler());
+        server.setExecutor(getRequestExecutor());
+        server.start();
+        setHttpServer(server);
+        setRunning(true);
+        logger.info("Listening for queries on http://localhost:{}/neighbors?term=<term>&depth=<depth>&minStrength=<strength>",
+                port);
+    }
+
+
+    /**
+     * Reads the adjacency of every term with at least <code>precomputeMinDegree</code> relationships into memory.
+     */
+    private void precomputeAdjacencies() {
+        long startTime = System.currentTimeMillis();
+        try (Transaction tx = getNeo4jDb().beginTx()) {
+            try (ResourceIterator<Node> nodes = getNeo4jDb().findNodes(LexiconLookupResponseWorker.TermLabel.TERM)) {
+                while (nodes.hasNext()) {
+                    Node node = nodes.next();
+                    if (getDegree(node) >= getPrecomputeMinDegree()) {
+                        String key = getAdjacencyKey(
+                                (String) node.getProperty("name"), (String) node.getProperty("language", null));
+                        getPrecomputedAdjacencies().put(key, readAdjacency(node));
+                    }
+                }
+            }
+            tx.success();
+        }
+        logger.info("Precomputed the adjacency of {} terms with a degree of at least {} in {} ms",
+                getPrecomputedAdjacencies().size(), getPrecomputeMinDegree(), System.currentTimeMillis() - startTime);
+    }
+
+
+    /**
+     * Returns the neighborhood of the given term, up to the given depth, following only relationships with at
+     * least the given strength. Relationships are followed regardless of their direction.
+     *
+     * @param language the language of the term, or null to look it up. Must be given for terms that occur in
+     *                 several languages.
+     */
+    String neighbors(String term, String language, int depth, double minStrength) throws JSONException {
+        String key = term + "\u0000" + language + "\u0000" + depth + "\u0000" + minStrength;
+        String result = getResponseCache().getIfPresent(key);
+        if (result != null) {
+            return result;
+        }
+        if (language == null) {
+            language = findLanguage(term);
+        }
+
+        JSONArray edges = new JSONArray();
+        Map<String, Integer> distances = new HashMap<>();
+        distances.put(term, 0);
+        Queue<String> frontier = new ArrayDeque<>();
+        frontier.add(term);
+        boolean found = false;
+        try (Transaction tx = getNeo4jDb().beginTx()) {
+            while (!frontier.isEmpty()) {
+                String current = frontier.poll();
+                int distance = distances.get(current);
+                if (distance >= depth) {
+                    continue;
+                }
+                Adjacency adjacency = getAdjacency(current, language);
+                found = found || adjacency != Adjacency.EMPTY;
+                for (int i = 0; i < adjacency.size(); i++) {
+                    if (adjacency.getStrength(i) < minStrength) {
+                        continue;
+                    }
+                    String neighbor = adjacency.getTerm(i);
+                    if (!distances.containsKey(neighbor)) {
+                        distances.put(neighbor, distance + 1);
+                        frontier.add(neighbor);
+                    }
+                    if (distances.get(neighbor) > distance) {
+                        edges.put(new JSONObject()
+                                .put("source", current)
+                                .put("target", neighbor)
+                                .put("strength", adjacency.getStrength(i))
+                                .put("distance", distance + 1));
+                    }
+                }
+            }
+            tx.success();
+        }
+
+        result = new JSONObject()
+                .put("term", term)
+                .putOpt("language", language)
+                .put("depth", depth)
+                .put("minStrength", minStrength)
+                .put("found", found)
+                .put("edges", edges)
+                .toString();
+        getResponseCache().put(key, result);
+        return result;
+    }
+
+
+    /**
+     * Returns the language of the term with the given name, or null if there is no such term or if it was written
+     * without a language.
+     *
+     * @throws IllegalArgumentException if the name occurs in several languages.
+     */
+    private String findLanguage(String term) {
+        String result = null;
+        try (Transaction tx = getNeo4jDb().beginTx()) {
+            try (ResourceIterator<Node> nodes =
+                         getNeo4jDb().findNodes(LexiconLookupResponseWorker.TermLabel.TERM, "name", term)) {
+                if (nodes.hasNext()) {
+                    result = (String) nodes.next().getProperty("language", null);
+                }
+                if (nodes.hasNext()) {
+                    throw new IllegalArgumentException("The term occurs in several languages. Add parameter: lang");
+                }
+            }
+            tx.success();
+        }
+        return result;
+    }
+
+
+    private Adjacency getAdjacency(String term, String language) {
+        Adjacency adjacency = getPrecomputedAdjacencies().get(getAdjacencyKey(term, language));
+        if (adjacency != null) {
+            return adjacency;
+        }
+        try (Transaction tx = getNeo4jDb().beginTx()) {
+            Node node = language == null
+                    ? getNeo4jDb().findNode(LexiconLookupResponseWorker.TermLabel.TERM, "name", term)
+                    : getNeo4jDb().findNode(LexiconLookupResponseWorker.getLanguageLabel(language), "name", term);
+            adjacency = node == null ? Adjacency.EMPTY : readAdjacency(node);
+            tx.success();
+        }
+        return adjacency;
+    }
+
+
+    private static String getAdjacencyKey(String term, String language) {
+        return language == null ? term : language + "\u0000" + term;
+    }
+
+
+    /**
+     * Returns the number of NEIGHBOR relationships of the given node, or, for graphs written with strength bucket
+     * relationships only, the number of those.
+     */
+    private static int getDegree(Node node) {
+        int degree = node.getDegree(LexiconLookupResponseWorker.TermRelation.NEIGHBOR);
+        if (degree == 0) {
+            degree = node.getDegree(LexiconLookupResponseWorker.TermRelation.NEIGHBOR_STRONG)
+                    + node.getDegree(LexiconLookupResponseWorker.TermRelation.NEIGHBOR_MEDIUM)
+                    + node.getDegree(LexiconLookupResponseWorker.TermRelation.NEIGHBOR_WEAK);
+        }
+        return degree;
+    }
+
+
+    /**
+     * Reads the neighbors of the given node, keeping the highest strength for neighbors connected through several
+     * relationships, including strength bucket copies of the same relationship. Must be called within a
+     * transaction.
+     */
+    private Adjacency readAdjacency(Node node) {
+        Map<String, Double> strengths = new LinkedHashMap<>();
+        for (Relationship relationship
+                : node.getRelationships(Direction.BOTH, LexiconLookupResponseWorker.TermRelation.values())) {
+            String neighbor = (String) relationship.getOtherNode(node).getProperty("name");
+            double strength = ((Number) relationship.getProperty("strength", 0.0)).doubleValue();
+            Double previous = strengths.get(neighbor);
+            if (previous == null || previous < strength) {
+                strengths.put(neighbor, strength);
+            }
+        }
+        return new Adjacency(strengths);
+    }
+
+
+    private static void printUsage() {
+        String s = "Usage:\n" +
+                "  serve -d <dBDir> (-p <port>) (-c <cacheSize>) (-g <minDegree>)\n" +
+                "  serve -h\n\n" +
+                "where  -d <dBDir>  is the directory holding a Neo4j graph database built by this program\n" +
+                "       -p <port>   is the local port on which to listen for queries. Optional. Default value\n" +
+                "                   is " + DEFAULT_PORT + "\n" +
+                "       -c <size>   is the maximum number of query results to cache. Optional. Default value\n" +
+                "                   is " + DEFAULT_CACHE_SIZE + "\n" +
+                "       -g <degree> is the minimum degree of the terms whose neighbors are read into memory at\n" +
+                "                   start-up. Optional. Default value is " + DEFAULT_PRECOMPUTE_MIN_DEGREE + "\n" +
+                "       -h          prints this usage information\n\n" +
+                "Query the service with\n" +
+                "  GET /neighbors?term=<term>(&lang=<lang>)(&depth=<depth>)(&minStrength=<strength>)\n" +
+                "where depth defaults to " + DEFAULT_DEPTH + " and is at most " + MAX_DEPTH +
+                ", and minStrength defaults to " + DEFAULT_MIN_STRENGTH + ". The language, lang, is needed\n" +
+                "only for terms that occur in several languages\n";
+
+        System.out.println(s);
+    }
+
+
+    private GraphDatabaseService getNeo4jDb() {
+        return neo4jDb;
+    }
+
+
+    private Cache<String, String> getResponseCache() {
+        return responseCache;
+    }
+
+
+    private Map<String, Adjacency> getPrecomputedAdjacencies() {
+        return precomputedAdjacencies;
+    }
+
+
+    private int getPrecomputeMinDegree() {
+        return precomputeMinDegree;
+    }
+
+
+    private ExecutorService getRequestExecutor() {
+        return requestExecutor;
+    }
+
+
+    private HttpServer getHttpServer() {
+        return httpServer;
+    }
+
+
+    private void setHttpServer(HttpServer httpServer) {
+        this.httpServer = httpServer;
+    }
+
+
+    private boolean isRunning() {
+        return isRunning;
+    }
+
+
+    private void setRunning(boolean running) {
+        isRunning = running;
+    }
+
+
+    @Override
+    public void stop() {
+        if (!isStopped()) {
+            setRunning(false);
+            getHttpServer().stop(1);
+            getRequestExecutor().shutdownNow();
+            logger.info("Served queries with cache statistics: {}", getResponseCache().stats());
+            getNeo4jDb().shutdown();
+        }
+    }
+
+
+    @Override
+    public boolean isStopped() {
+        return !isRunning();
+    }
+
+
+    /**
+     * The neighbors of a term, with the strength of the relationship to each of them.
+     */
+    private static class Adjacency {
+
+        static final Adjacency EMPTY = new Adjacency(new HashMap<String, Double>());
+
+        private final String[] terms;
+        private final double[] strengths;
+
+
+        Adjacency(Map<String, Double> strengths) {
+            this.terms = new String[strengths.size()];
+            this.strengths = new double[strengths.size()];
+            int i = 0;
+            for (Map.Entry<String, Double> entry : strengths.entrySet()) {
+                this.terms[i] = entry.getKey();
+                this.strengths[i] = entry.getValue();
+                i++;
+            }
+        }
+
+
+        int size() {
+            return terms.length;
+        }
+
+
+        String getTerm(int i) {
+            return terms[i];
+        }
+
+
+        double getStrength(int i) {
+            return strengths[i];
+        }
+    }
+
+
+    private class NeighborsHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int status = 200;
+            String body;
+            try {
+                Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+                String term = parameters.get("term");
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    status = 405;
+                    body = error("Only GET is supported");
+                } else if (term == null || term.isEmpty()) {
+                    status = 400;
+                    body = error("Missing parameter: term");
+                } else {
+                    int depth = parameters.containsKey("depth")
+                            ? Integer.parseInt(parameters.get("depth")) : DEFAULT_DEPTH;
+                    double minStrength = parameters.containsKey("minStrength")
+                            ? Double.parseDouble(parameters.get("minStrength")) : DEFAULT_MIN_STRENGTH;
+                    if (depth < 1 || depth > MAX_DEPTH) {
+                        status = 400;
+                        body = error("Parameter depth must be between 1 and " + MAX_DEPTH);
+                    } else {
+                        body = neighbors(term, parameters.get("lang"), depth, minStrength);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                status = 400;
+                body = error("Malformed parameter: " + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                status = 400;
+                body = error(e.getMessage());
+            } catch (Exception e) {
+                logger.error("Caught exception: {}", e.getMessage(), e);
+                status = 500;
+                body = error(e.getMessage());
+            }
+
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+
+
+        private String error(String message) {
+            try {
+                return new JSONObject().put("error", message).toString();
+            } catch (JSONException e) {
+                return "{}";
+            }
+        }
+
+
+        private Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+            Map<String, String> result = new HashMap<>();
+            if (query == null) {
+                return result;
+            }
+            for (String pair : query.split("&")) {
+                int i = pair.indexOf('=');
+                if (i > 0) {
+                    result.put(URLDecoder.decode(pair.substring(0, i), "UTF-8"),
+                            URLDecoder.decode(pair.substring(i + 1), "UTF-8"));
+                }
+            }
+            return result;
+        }
+    }
+}
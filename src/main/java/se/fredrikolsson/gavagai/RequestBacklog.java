@@ -0,0 +1,124 @@
+package se.fredrikolsson.gavagai;
+
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class holding the lookup requests spawned by responses, and those to be retried, until the bounded request queue
+ * has room for them, so that a full queue neither loses a request nor blocks the worker making it.
+ * <p>
+ * Any thread may add requests, but only the response worker feeds them to the queue. In a level-synchronous crawl,
+ * a request is counted by the layer barrier when it is fed to the queue, not while it waits in the backlog.
+ */
+class RequestBacklog {
+
+    private final static long WAIT_MILLIS = 100;
+
+    private final BlockingQueue<LookupRequest> lookupRequestQueue;
+    private final LayerBarrier layerBarrier;
+    private final Queue<LookupRequest> requests = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger numRequests = new AtomicInteger();
+
+
+    /**
+     * @param layerBarrier if not null, the crawl is level-synchronous.
+     */
+    RequestBacklog(BlockingQueue<LookupRequest> lookupRequestQueue, LayerBarrier layerBarrier) {
+        this.lookupRequestQueue = lookupRequestQueue;
+        this.layerBarrier = layerBarrier;
+    }
+
+
+    /**
+     * Adds a request spawned by a response, counting it as pending for its job, if any, before any request worker
+     * can take it.
+     */
+    void add(LookupRequest request) {
+        if (request.getJob() != null) {
+            request.getJob().lookupsIssued(1);
+        }
+        getRequests().add(request);
+        numRequests.incrementAndGet();
+    }
+
+
+    /**
+     * Puts back a request taken by a request worker, to be looked up again. It stays pending for its job, but is
+     * no longer counted by the layer barrier until it is fed to the queue again. It is put back before the barrier
+     * is told, so that a layer is never seen as done while one of its lookups is on its way back.
+     */
+    void retry(LookupRequest request) {
+        getRequests().add(request);
+        numRequests.incrementAndGet();
+        if (getLayerBarrier() != null) {
+            getLayerBarrier().lookupDone();
+        }
+    }
+
+
+    /**
+     * Moves requests to the request queue, in the order they were added, for as long as it has room for them.
+     *
+     * @return the number of requests moved.
+     */
+    int feed() {
+        int result = 0;
+        LookupRequest request;
+        while ((request = getRequests().peek()) != null) {
+            if (getLayerBarrier() != null) {
+                getLayerBarrier().lookupsIssued(1);
+            }
+            if (!getLookupRequestQueue().offer(request)) {
+                if (getLayerBarrier() != null) {
+                    getLayerBarrier().lookupDone();
+                }
+                break;
+            }
+            getRequests().poll();
+            numRequests.decrementAndGet();
+            result++;
+        }
+        return result;
+    }
+
+
+    /**
+     * Queues a starting term read from a file, once the backlog is empty and the queue has room for it, so that
+     * the terms already reached are looked up before more starting terms are read.
+     */
+    void put(LookupRequest request) throws InterruptedException {
+        do {
+            while (!isEmpty()) {
+                Thread.sleep(WAIT_MILLIS);
+            }
+        } while (!getLookupRequestQueue().offer(request, WAIT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+
+    int size() {
+        return numRequests.get();
+    }
+
+
+    private BlockingQueue<LookupRequest> getLookupRequestQueue() {
+        return lookupRequestQueue;
+    }
+
+
+    private LayerBarrier getLayerBarrier() {
+        return layerBarrier;
+    }
+
+
+    private Queue<LookupRequest> getRequests() {
+        return requests;
+    }
+}
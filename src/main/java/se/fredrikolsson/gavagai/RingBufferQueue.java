@@ -0,0 +1,301 @@
+package se.fredrikolsson.gavagai;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue for many producer threads and a single consumer thread, backed by a pre-allocated
+ * ring of slots.
+ * <p>
+ * Producers claim a slot with a compare-and-set on the tail counter and publish their element by advancing the
+ * slot's sequence number, so no lock is taken and no node is allocated per element. The consumer reads slots in
+ * order as their sequence numbers show them to be published. {@link #drainTo(Collection, int)} claims all
+ * published elements up to the given maximum in one go, and releases their slots with a single update of the
+ * head counter.
+ * <p>
+ * How a thread waits for an element, or for a free slot, is decided by the {@link WaitStrategy}. Only one thread
+ * may ever take elements out of the queue, so elements cannot be removed other than from its head. Iterating over
+ * the queue gives a snapshot of its elements, see {@link #iterator()}.
+ */
+class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private volatile Thread waitingConsumer;
+
+
+    /**
+     * @param minCapacity the minimum number of elements the queue can hold. The capacity is rounded up to the
+     *                    nearest power of two.
+     */
+    RingBufferQueue(int minCapacity, WaitStrategy waitStrategy) {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity) - 1) << 1;
+        this.slots = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = capacity - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = e;
+                    sequences.set(index, position + 1);
+                    Thread consumer = waitingConsumer;
+                    if (consumer != null) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+        }
+    }
+
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        int attempt = 0;
+        while (!offer(e)) {
+            waitStrategy.idle(attempt++);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int attempt = 0;
+        while (!offer(e)) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            waitStrategy.idle(attempt++);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return true;
+    }
+
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long position = head.get();
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        E e = (E) slots[index];
+        slots[index] = null;
+        sequences.set(index, position + slots.length);
+        head.lazySet(position + 1);
+        return e;
+    }
+
+
+    @Override
+    public E take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = timeout == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + unit.toNanos(timeout);
+        int attempt = 0;
+        E e;
+        while ((e = poll()) == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remaining = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            if (waitStrategy == WaitStrategy.BLOCKING) {
+                waitingConsumer = Thread.currentThread();
+                if ((e = poll()) != null) {
+                    waitingConsumer = null;
+                    return e;
+                }
+                if (remaining == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, remaining);
+                }
+                waitingConsumer = null;
+            } else {
+                waitStrategy.idle(attempt++);
+            }
+        }
+        return e;
+    }
+
+
+    @Override
+    public E peek() {
+        long position = head.get();
+        int index = (int) position & mask;
+        @SuppressWarnings("unchecked")
+        E e = sequences.get(index) == position + 1 ? (E) slots[index] : null;
+        return e;
+    }
+
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        long position = head.get();
+        int n = 0;
+        while (n < maxElements) {
+            int index = (int) (position + n) & mask;
+            if (sequences.get(index) != position + n + 1) {
+                break;
+            }
+            c.add((E) slots[index]);
+            slots[index] = null;
+            sequences.set(index, position + n + slots.length);
+            n++;
+        }
+        if (n > 0) {
+            head.lazySet(position + n);
+        }
+        return n;
+    }
+
+
+    @Override
+    public int size() {
+        long h = head.get();
+        long t = tail.get();
+        return (int) Math.max(0, Math.min(slots.length, t - h));
+    }
+
+
+    @Override
+    public int remainingCapacity() {
+        return slots.length - size();
+    }
+
+
+    /**
+     * Returns an iterator over a snapshot of the published elements, oldest first. The snapshot is weakly
+     * consistent: elements taken by the consumer while it is made are left out, and elements published while it is
+     * made may or may not be included. The iterator does not support removal.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<>();
+        long t = tail.get();
+        for (long position = Math.max(head.get(), t - slots.length); position < t; position++) {
+            int index = (int) position & mask;
+            if (sequences.get(index) != position + 1) {
+                // Claimed but not yet published, or already taken.
+                continue;
+            }
+            E e = (E) slots[index];
+            // The slot may have been taken, and even reused, while it was read.
+            if (e != null && sequences.get(index) == position + 1) {
+                snapshot.add(e);
+            }
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+
+    /**
+     * Ways for a thread to wait for an element to arrive in, or a slot to be freed in, the queue.
+     */
+    enum WaitStrategy {
+
+        /**
+         * Spins on the CPU. Lowest latency, but occupies a core while waiting.
+         */
+        BUSY_SPIN {
+            @Override
+            void idle(int attempt) {
+            }
+        },
+
+        /**
+         * Spins for a while, then yields the CPU to other threads between attempts.
+         */
+        YIELDING {
+            @Override
+            void idle(int attempt) {
+                if (attempt >= SPIN_ATTEMPTS) {
+                    Thread.yield();
+                }
+            }
+        },
+
+        /**
+         * Spins, then yields, then sleeps for short periods between attempts.
+         */
+        SLEEPING {
+            @Override
+            void idle(int attempt) {
+                if (attempt >= 2 * SPIN_ATTEMPTS) {
+                    LockSupport.parkNanos(SLEEP_NANOS);
+                } else if (attempt >= SPIN_ATTEMPTS) {
+                    Thread.yield();
+                }
+            }
+        },
+
+        /**
+         * The consumer parks until a producer hands it an element. Producers waiting for a free slot sleep for
+         * short periods between attempts. Uses the least CPU.
+         */
+        BLOCKING {
+            @Override
+            void idle(int attempt) {
+                LockSupport.parkNanos(SLEEP_NANOS);
+            }
+        };
+
+        private static final int SPIN_ATTEMPTS = 100;
+        private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+
+        abstract void idle(int attempt);
+    }
+}
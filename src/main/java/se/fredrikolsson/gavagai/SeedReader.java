@@ -0,0 +1,128 @@
+package se.fredrikolsson.gavagai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Class responsible for streaming starting terms from a file, or from standard input, onto the request queue.
+ * <p>
+ * Each line holds a term, optionally followed by a tab and a language code, and by another tab and the distance
+ * to start the term at. A term without a language is looked up in every language crawled. Empty lines and lines
+ * starting with # are skipped, as are lines that cannot be parsed. Terms are put on the queue as it has room for
+ * them, and only while no requests spawned by responses are waiting for room, so that neither the file nor the
+ * backlog of such requests grows to be held in memory.
+ */
+class SeedReader {
+
+    private static Logger logger = LoggerFactory.getLogger(SeedReader.class);
+
+    static final String STANDARD_INPUT = "-";
+
+    private final static int PROGRESS_INTERVAL = 100000;
+
+    private final String fileName;
+    private final Set<String> languageCodes;
+    private volatile boolean isDone;
+
+
+    /**
+     * @param fileName      the file to read, or {@link #STANDARD_INPUT}.
+     * @param languageCodes the languages crawled. Terms in other languages are skipped.
+     */
+    SeedReader(String fileName, Set<String> languageCodes) {
+        this.fileName = fileName;
+        this.languageCodes = languageCodes;
+    }
+
+
+    /**
+     * Reads the file, waiting for the backlog to be emptied and for room in the queue as needed.
+     */
+    void read(RequestBacklog requestBacklog) throws IOException, InterruptedException {
+        long numLines = 0;
+        long numRequests = 0;
+        long numSkipped = 0;
+        try (InputStream in = isStandardInput() ? System.in : new FileInputStream(getFileName());
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                numLines++;
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t", -1);
+                String term = fields[0].trim();
+                String languageCode = fields.length > 1 ? fields[1].trim() : "";
+                int distance;
+                try {
+                    distance = fields.length > 2 ? Integer.parseInt(fields[2].trim()) : 0;
+                } catch (NumberFormatException e) {
+                    distance = -1;
+                }
+                if (term.isEmpty() || fields.length > 3 || distance < 0
+                        || !(languageCode.isEmpty() || getLanguageCodes().contains(languageCode))) {
+                    logger.warn("Skipping line {} of {}: expected a term, optionally followed by one of the "
+                            + "languages {} and a distance, separated by tabs", numLines, getFileName(),
+                            getLanguageCodes());
+                    numSkipped++;
+                    continue;
+                }
+                Set<String> codes = languageCode.isEmpty() ? getLanguageCodes() : Collections.singleton(languageCode);
+                for (String code : codes) {
+                    put(requestBacklog, new LookupRequest(term, code, distance));
+                    numRequests++;
+                }
+                if (numLines % PROGRESS_INTERVAL == 0) {
+                    logger.info("Read {} lines of {}", numLines, getFileName());
+                }
+            }
+        } finally {
+            setDone(true);
+        }
+        logger.info("Read {} starting terms from {}. Skipped {} lines", numRequests, getFileName(), numSkipped);
+    }
+
+
+    /**
+     * Returns true once the whole file has been read, or reading it has failed.
+     */
+    boolean isDone() {
+        return isDone;
+    }
+
+
+    private void put(RequestBacklog requestBacklog, LookupRequest request) throws InterruptedException {
+        logger.debug("Adding term to lookup in Gavagai Living Lexicon: \"{}\"", request.getTerm());
+        LookupEvents.requestEnqueued(request);
+        requestBacklog.put(request);
+    }
+
+
+    private boolean isStandardInput() {
+        return STANDARD_INPUT.equals(getFileName());
+    }
+
+
+    private String getFileName() {
+        return fileName;
+    }
+
+
+    private Set<String> getLanguageCodes() {
+        return languageCodes;
+    }
+
+
+    private void setDone(boolean done) {
+        isDone = done;
+    }
+}
@@ -0,0 +1,156 @@
+package se.fredrikolsson.gavagai;
+
+import org.neo4j.graphdb.ConstraintViolationException;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class keeping track of the semantic labels seen in responses from Gavagai's semantic memories.
+ * <p>
+ * Each distinct label is stored once, as a SEMANTIC_LABEL node holding the label text and a compact integer id.
+ * Relationships refer to their label by that id instead of carrying the label text themselves. To find the
+ * relationships with a given label, look up the id first:
+ * <pre>
+ *     MATCH (l:SEMANTIC_LABEL {name: "..."}), (a)-[r:NEIGHBOR]-(b)
+ *     WHERE r.semanticLabelId = l.id
+ *     RETURN a, b
+ * </pre>
+ * Instances are not thread safe, and are intended to be used by the single response worker only.
+ */
+class SemanticLabelDictionary {
+
+    private static Logger logger = LoggerFactory.getLogger(SemanticLabelDictionary.class);
+
+    static final String ID_PROPERTY = "id";
+    static final String NAME_PROPERTY = "name";
+
+    private final GraphDatabaseService neo4jDb;
+    private final Map<String, Integer> labelIds;
+    private final List<String> uncommittedLabels;
+    private int nextId;
+
+
+    SemanticLabelDictionary(GraphDatabaseService neo4jDb) {
+        this.neo4jDb = neo4jDb;
+        this.labelIds = new HashMap<>();
+        this.uncommittedLabels = new ArrayList<>();
+        setNextId(0);
+    }
+
+
+    /**
+     * Sets up the schema for SEMANTIC_LABEL nodes, and reads the labels already present in the database, so
+     * that a crawl continuing in an existing database keeps using the same ids.
+     */
+    void init() {
+        try (Transaction tx = getNeo4jDb().beginTx()) {
+            try {
+                getNeo4jDb().schema()
+                        .constraintFor(DictionaryLabel.SEMANTIC_LABEL)
+                        .assertPropertyIsUnique(NAME_PROPERTY)
+                        .create();
+            } catch (ConstraintViolationException e) {
+                logger.warn("Database constraint already exists for label: {}", DictionaryLabel.SEMANTIC_LABEL);
+            }
+            tx.success();
+        }
+        try (Transaction tx = getNeo4jDb().beginTx()) {
+            try (ResourceIterator<Node> nodes = getNeo4jDb().findNodes(DictionaryLabel.SEMANTIC_LABEL)) {
+                while (nodes.hasNext()) {
+                    Node node = nodes.next();
+                    int id = (Integer) node.getProperty(ID_PROPERTY);
+                    getLabelIds().put((String) node.getProperty(NAME_PROPERTY), id);
+                    if (id >= getNextId()) {
+                        setNextId(id + 1);
+                    }
+                }
+            }
+            tx.success();
+        }
+        logger.info("Loaded {} semantic labels from the database", getLabelIds().size());
+    }
+
+
+    /**
+     * Returns the id of the given semantic label, creating a SEMANTIC_LABEL node for it if it has not been seen
+     * before. Must be called within a transaction.
+     */
+    int getId(String semanticLabel) {
+        Integer id = getLabelIds().get(semanticLabel);
+        if (id == null) {
+            id = getNextId();
+            setNextId(id + 1);
+            Node node = getNeo4jDb().createNode(DictionaryLabel.SEMANTIC_LABEL);
+            node.setProperty(ID_PROPERTY, id);
+            node.setProperty(NAME_PROPERTY, semanticLabel);
+            getLabelIds().put(semanticLabel, id);
+            getUncommittedLabels().add(semanticLabel);
+        }
+        return id;
+    }
+
+
+    /**
+     * To be called when the transaction in which labels were created has been committed.
+     */
+    void commit() {
+        getUncommittedLabels().clear();
+    }
+
+
+    /**
+     * To be called when the transaction in which labels were created has been rolled back, so that the
+     * labels are created again the next time they are seen.
+     */
+    void rollback() {
+        for (String semanticLabel : getUncommittedLabels()) {
+            getLabelIds().remove(semanticLabel);
+        }
+        getUncommittedLabels().clear();
+    }
+
+
+    int size() {
+        return getLabelIds().size();
+    }
+
+
+    private GraphDatabaseService getNeo4jDb() {
+        return neo4jDb;
+    }
+
+
+    private Map<String, Integer> getLabelIds() {
+        return labelIds;
+    }
+
+
+    private List<String> getUncommittedLabels() {
+        return uncommittedLabels;
+    }
+
+
+    private int getNextId() {
+        return nextId;
+    }
+
+
+    private void setNextId(int nextId) {
+        this.nextId = nextId;
+    }
+
+
+    enum DictionaryLabel implements Label {
+        SEMANTIC_LABEL
+    }
+}
@@ -0,0 +1,330 @@
+package se.fredrikolsson.gavagai;
+
+import org.neo4j.graphdb.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Class responsible for recording, for a crawl tagged as a snapshot version, how the neighbors of each term looked
+ * up have changed since the term was last looked up.
+ * <p>
+ * The changes are written to a delta log in the <code>snapshots</code> directory of the database. Each crawl writes
+ * a gzipped, tab separated file of its own, named by its start time and version, with one line per change:
+ * <ul>
+ * <li><code>+ lang term neighbor labelId strength</code> for a neighbor that appeared,</li>
+ * <li><code>~ lang term neighbor labelId strength</code> for a neighbor whose strength changed,</li>
+ * <li><code>- lang term neighbor labelId</code> for a neighbor that disappeared,</li>
+ * <li><code>L labelId label</code> for each semantic label, the first time it is used in the file.</li>
+ * </ul>
+ * The neighbors a term had when it was last looked up are kept on its node, as the arrays
+ * <code>snapshotNeighbors</code> and <code>snapshotStrengths</code>, along with the version in
+ * <code>snapshotVersion</code>. The log thus grows with the changes only, and the neighborhood of a term at any
+ * version can be rebuilt by replaying it, see {@link SnapshotReplayer}.
+ * <p>
+ * Changes are buffered until the transaction they were made in is committed. They are then written to the log,
+ * which is flushed to disk at most once a second, as further changes are committed, and when it is closed. A
+ * crawl that is killed loses the changes not yet flushed, and leaves the files of other crawls intact.
+ * Instances are not thread safe, and are intended to be used by the single response worker only.
+ */
+class SnapshotLog {
+
+    private static Logger logger = LoggerFactory.getLogger(SnapshotLog.class);
+
+    static final String DIRECTORY_NAME = "snapshots";
+    static final String VERSION_PATTERN = "[A-Za-z0-9._-]+";
+    static final String ADDED = "+";
+    static final String CHANGED = "~";
+    static final String REMOVED = "-";
+    static final String LABEL = "L";
+
+    private final static String NEIGHBORS_PROPERTY = "snapshotNeighbors";
+    private final static String STRENGTHS_PROPERTY = "snapshotStrengths";
+    private final static String VERSION_PROPERTY = "snapshotVersion";
+    private final static long FLUSH_INTERVAL_MILLIS = 1000;
+    private final static String FILE_SUFFIX = ".tsv.gz";
+
+    private final File directory;
+    private final String version;
+    private final List<String> uncommittedLines;
+    private final Set<Integer> loggedLabelIds;
+    private final Set<Integer> uncommittedLabelIds;
+    private File file;
+    private Writer writer;
+    private long lastFlushTime;
+    private long numAdded;
+    private long numChanged;
+    private long numRemoved;
+
+
+    /**
+     * @param version the version to tag the changes with, e.g. the date of the crawl.
+     */
+    SnapshotLog(String neo4jDbName, String version) {
+        if (!version.matches(VERSION_PATTERN)) {
+            throw new IllegalArgumentException(
+                    "Expected a snapshot version made of letters, digits and . _ -, got \"" + version + "\"");
+        }
+        this.directory = new File(neo4jDbName, DIRECTORY_NAME);
+        this.version = version;
+        this.uncommittedLines = new ArrayList<>();
+        this.loggedLabelIds = new HashSet<>();
+        this.uncommittedLabelIds = new HashSet<>();
+    }
+
+
+    /**
+     * Creates the file of this crawl in the delta log.
+     */
+    void open() throws IOException {
+        if (!getDirectory().isDirectory() && !getDirectory().mkdirs()) {
+            throw new IOException("Could not create snapshot directory: " + getDirectory());
+        }
+        setLastFlushTime(System.currentTimeMillis());
+        String name = String.format("%013d", getLastFlushTime()) + "-" + getVersion() + FILE_SUFFIX;
+        setFile(new File(getDirectory(), name));
+        setWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(getFile()), true), StandardCharsets.UTF_8));
+        logger.info("Recording changes to the graph as snapshot version {} in {}", getVersion(), getFile());
+    }
+
+
+    /**
+     * Compares the neighbors of a term just looked up with those it had when it was last looked up, records the
+     * changes, and stores the new neighbors on its node. Must be called within a transaction.
+     *
+     * @param neighbors      the strength of each neighbor, by semantic label id and neighbor name, separated by a tab.
+     * @param semanticLabels the text of each semantic label used, by id.
+     */
+    void update(Node term, String termName, String languageCode, Map<String, Double> neighbors,
+                Map<Integer, String> semanticLabels) {
+        Map<String, Double> previous = new HashMap<>();
+        if (term.hasProperty(NEIGHBORS_PROPERTY)) {
+            String[] keys = (String[]) term.getProperty(NEIGHBORS_PROPERTY);
+            double[] strengths = (double[]) term.getProperty(STRENGTHS_PROPERTY);
+            for (int i = 0; i < keys.length; i++) {
+                previous.put(keys[i], strengths[i]);
+            }
+        }
+        String prefix = languageCode + "\t" + escape(termName) + "\t";
+        for (Map.Entry<String, Double> entry : neighbors.entrySet()) {
+            Double strength = previous.remove(entry.getKey());
+            if (strength == null) {
+                addLine(ADDED, prefix, entry.getKey(), entry.getValue(), semanticLabels);
+                numAdded++;
+            } else if (Double.compare(strength, entry.getValue()) != 0) {
+                addLine(CHANGED, prefix, entry.getKey(), entry.getValue(), semanticLabels);
+                numChanged++;
+            }
+        }
+        for (String key : previous.keySet()) {
+            addLine(REMOVED, prefix, key, null, semanticLabels);
+            numRemoved++;
+        }
+
+        String[] keys = new String[neighbors.size()];
+        double[] strengths = new double[neighbors.size()];
+        int i = 0;
+        for (Map.Entry<String, Double> entry : neighbors.entrySet()) {
+            keys[i] = entry.getKey();
+            strengths[i++] = entry.getValue();
+        }
+        term.setProperty(NEIGHBORS_PROPERTY, keys);
+        term.setProperty(STRENGTHS_PROPERTY, strengths);
+        term.setProperty(VERSION_PROPERTY, getVersion());
+    }
+
+
+    /**
+     * Writes the changes recorded since the last commit or rollback. To be called once their transaction has
+     * been committed.
+     */
+    void commit() {
+        try {
+            for (String line : getUncommittedLines()) {
+                getWriter().write(line);
+            }
+            if (System.currentTimeMillis() - getLastFlushTime() >= FLUSH_INTERVAL_MILLIS) {
+                getWriter().flush();
+                setLastFlushTime(System.currentTimeMillis());
+            }
+        } catch (IOException e) {
+            logger.error("Could not write {} changes to {}: {}", getUncommittedLines().size(), getFile(),
+                    e.getMessage());
+        }
+        getLoggedLabelIds().addAll(getUncommittedLabelIds());
+        getUncommittedLines().clear();
+        getUncommittedLabelIds().clear();
+    }
+
+
+    /**
+     * Drops the changes recorded since the last commit or rollback, since their transaction failed.
+     */
+    void rollback() {
+        getUncommittedLines().clear();
+        getUncommittedLabelIds().clear();
+    }
+
+
+    void close() {
+        try {
+            getWriter().close();
+        } catch (IOException e) {
+            logger.error("Could not close {}: {}", getFile(), e.getMessage());
+        }
+    }
+
+
+    String getStatisticsMessage() {
+        return "Snapshot " + getVersion() + " recorded " + numAdded + " new, " + numChanged + " changed and "
+                + numRemoved + " removed neighbors";
+    }
+
+
+    private void addLine(String change, String prefix, String key, Double strength,
+                         Map<Integer, String> semanticLabels) {
+        int i = key.indexOf('\t');
+        int semanticLabelId = Integer.parseInt(key.substring(0, i));
+        if (semanticLabels.containsKey(semanticLabelId)
+                && !getLoggedLabelIds().contains(semanticLabelId)
+                && getUncommittedLabelIds().add(semanticLabelId)) {
+            getUncommittedLines().add(LABEL + "\t" + semanticLabelId + "\t"
+                    + escape(semanticLabels.get(semanticLabelId)) + "\n");
+        }
+        getUncommittedLines().add(change + "\t" + prefix + escape(key.substring(i + 1)) + "\t" + semanticLabelId
+                + (strength != null ? "\t" + strength : "") + "\n");
+    }
+
+
+    /**
+     * Returns the files of the delta log of a database, in the order in which they were written.
+     */
+    static List<File> getLogFiles(String neo4jDbName) {
+        List<File> result = new ArrayList<>();
+        File[] files = new File(neo4jDbName, DIRECTORY_NAME).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().matches("[0-9]{13}-" + VERSION_PATTERN + FILE_SUFFIX.replace(".", "\\."))) {
+                    result.add(file);
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+
+    static String getVersion(File logFile) {
+        String name = logFile.getName();
+        return name.substring(name.indexOf('-') + 1, name.length() - FILE_SUFFIX.length());
+    }
+
+
+    static long getStartTime(File logFile) {
+        return Long.parseLong(logFile.getName().substring(0, logFile.getName().indexOf('-')));
+    }
+
+
+    /**
+     * Creates the key of a neighbor, as passed to {@link #update}.
+     */
+    static String getNeighborKey(int semanticLabelId, String neighborName) {
+        return semanticLabelId + "\t" + neighborName;
+    }
+
+
+    static String escape(String s) {
+        if (s.indexOf('\\') < 0 && s.indexOf('\t') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+            return s;
+        }
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+
+    static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        StringBuilder result = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+                result.append(c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+
+    private File getDirectory() {
+        return directory;
+    }
+
+
+    private File getFile() {
+        return file;
+    }
+
+
+    private void setFile(File file) {
+        this.file = file;
+    }
+
+
+    private String getVersion() {
+        return version;
+    }
+
+
+    private List<String> getUncommittedLines() {
+        return uncommittedLines;
+    }
+
+
+    private Set<Integer> getLoggedLabelIds() {
+        return loggedLabelIds;
+    }
+
+
+    private Set<Integer> getUncommittedLabelIds() {
+        return uncommittedLabelIds;
+    }
+
+
+    private Writer getWriter() {
+        return writer;
+    }
+
+
+    private void setWriter(Writer writer) {
+        this.writer = writer;
+    }
+
+
+    private long getLastFlushTime() {
+        return lastFlushTime;
+    }
+
+
+    private void setLastFlushTime(long lastFlushTime) {
+        this.lastFlushTime = lastFlushTime;
+    }
+}
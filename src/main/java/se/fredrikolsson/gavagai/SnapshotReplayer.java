@@ -0,0 +1,290 @@
+package se.fredrikolsson.gavagai;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Class responsible for rebuilding the neighborhoods of terms, as they were at a given snapshot version, from the
+ * delta log written by {@link SnapshotLog}, without opening the graph database.
+ * <p>
+ * The files of the log are read in the order in which they were written, and their changes are applied up to the
+ * end of the last consecutive crawl tagged with the version asked for. Only the neighbors of the terms asked for
+ * are kept in memory, or those of all terms if none are given.
+ * <p>
+ * Invoke {@link se.fredrikolsson.gavagai.GraphCreator} with <code>snapshot -h</code> to see usage information.
+ */
+class SnapshotReplayer {
+
+    private static Logger logger = LoggerFactory.getLogger(SnapshotReplayer.class);
+
+    private final List<File> logFiles;
+    private final Set<String> terms;
+    private final String languageCode;
+    private final Map<Integer, String> semanticLabels;
+    private final Map<String, Map<String, Double>> neighborhoods;
+
+
+    static void main(String[] args) throws Exception {
+
+        OptionSet options = null;
+        try {
+            OptionParser parser = new OptionParser("d:v:t:l:o:h");
+            parser.accepts("versions");
+            options = parser.parse(args);
+        } catch (Throwable t) {
+            System.err.println("\nError: " + t.getMessage() + ". Exiting.\n");
+            SnapshotReplayer.printUsage();
+            System.exit(1);
+        }
+
+        if (options.has("h") || !options.has("d")) {
+            SnapshotReplayer.printUsage();
+            System.exit(1);
+        }
+
+        SnapshotReplayer replayer = new SnapshotReplayer(
+                (String) options.valueOf("d"),
+                (List<String>) options.valuesOf("t"),
+                (String) options.valueOf("l"));
+        if (replayer.getLogFiles().isEmpty()) {
+            System.err.println("\nError: No snapshots have been recorded in " + options.valueOf("d") + ". Exiting.\n");
+            System.exit(1);
+        }
+        OutputStream outputStream = options.has("o")
+                ? new FileOutputStream((String) options.valueOf("o"))
+                : System.out;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8))) {
+            if (options.has("versions")) {
+                replayer.listVersions(out);
+            } else if (replayer.replay((String) options.valueOf("v"))) {
+                replayer.write(out);
+            } else {
+                System.err.println("\nError: Unknown snapshot version \"" + options.valueOf("v") + "\". Exiting.\n");
+                System.exit(1);
+            }
+        }
+    }
+
+
+    /**
+     * @param terms        the terms whose neighborhoods to rebuild, or an empty list for all terms.
+     * @param languageCode the language of the terms, or null for all languages.
+     */
+    private SnapshotReplayer(String neo4jDbName, List<String> terms, String languageCode) {
+        this.logFiles = SnapshotLog.getLogFiles(neo4jDbName);
+        this.terms = new HashSet<>();
+        for (String term : terms) {
+            this.terms.add(SnapshotLog.escape(term));
+        }
+        this.languageCode = languageCode;
+        this.semanticLabels = new HashMap<>();
+        this.neighborhoods = new TreeMap<>();
+    }
+
+
+    /**
+     * Applies the changes of the log up to the given version, or all of them if the version is null.
+     *
+     * @return false if the version does not occur in the log.
+     */
+    private boolean replay(String version) throws IOException {
+        long startTime = System.currentTimeMillis();
+        long numChanges = 0;
+        boolean isVersionSeen = false;
+        for (File logFile : getLogFiles()) {
+            boolean isVersion = SnapshotLog.getVersion(logFile).equals(version);
+            if (isVersionSeen && !isVersion) {
+                break;
+            }
+            isVersionSeen |= isVersion;
+            numChanges += apply(logFile);
+        }
+        logger.debug("Applied {} changes to {} terms in {} ms", numChanges, getNeighborhoods().size(),
+                System.currentTimeMillis() - startTime);
+        return version == null || isVersionSeen;
+    }
+
+
+    /**
+     * Applies the changes in one file of the log.
+     *
+     * @return the number of changes applied.
+     */
+    private long apply(File logFile) throws IOException {
+        long result = 0;
+        try (BufferedReader reader = open(logFile)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields[0].equals(SnapshotLog.LABEL)) {
+                    getSemanticLabels().put(Integer.valueOf(fields[1]), SnapshotLog.unescape(fields[2]));
+                } else if (isIncluded(fields[1], fields[2])) {
+                    String termKey = fields[1] + "\t" + fields[2];
+                    Map<String, Double> neighbors = getNeighborhoods().get(termKey);
+                    if (neighbors == null) {
+                        neighbors = new HashMap<>();
+                        getNeighborhoods().put(termKey, neighbors);
+                    }
+                    String neighborKey = fields[4] + "\t" + fields[3];
+                    if (fields[0].equals(SnapshotLog.REMOVED)) {
+                        neighbors.remove(neighborKey);
+                    } else {
+                        neighbors.put(neighborKey, Double.valueOf(fields[5]));
+                    }
+                    result++;
+                }
+            }
+        } catch (EOFException e) {
+            logger.warn("{} ends before its crawl did. The changes made after it was last flushed are missing",
+                    logFile);
+        }
+        return result;
+    }
+
+
+    /**
+     * Writes the neighbors of each term, strongest first, as tab separated lines of language, term, neighbor,
+     * semantic label and strength.
+     */
+    private void write(Writer out) throws IOException {
+        for (Map.Entry<String, Map<String, Double>> neighborhood : getNeighborhoods().entrySet()) {
+            String[] term = neighborhood.getKey().split("\t", -1);
+            List<Map.Entry<String, Double>> neighbors = new ArrayList<>(neighborhood.getValue().entrySet());
+            Collections.sort(neighbors, new Comparator<Map.Entry<String, Double>>() {
+                @Override
+                public int compare(Map.Entry<String, Double> e1, Map.Entry<String, Double> e2) {
+                    int result = e2.getValue().compareTo(e1.getValue());
+                    return result != 0 ? result : e1.getKey().compareTo(e2.getKey());
+                }
+            });
+            for (Map.Entry<String, Double> neighbor : neighbors) {
+                String[] key = neighbor.getKey().split("\t", -1);
+                String semanticLabel = getSemanticLabels().get(Integer.valueOf(key[0]));
+                out.write(term[0] + "\t" + term[1] + "\t" + key[1] + "\t"
+                        + (semanticLabel != null ? SnapshotLog.escape(semanticLabel) : key[0]) + "\t"
+                        + neighbor.getValue() + "\n");
+            }
+        }
+    }
+
+
+    /**
+     * Writes each version in the log, in order, with the time its first crawl started and its number of changes.
+     */
+    private void listVersions(Writer out) throws IOException {
+        Map<String, long[]> versions = new LinkedHashMap<>();
+        for (File logFile : getLogFiles()) {
+            long[] counts = versions.get(SnapshotLog.getVersion(logFile));
+            if (counts == null) {
+                counts = new long[]{SnapshotLog.getStartTime(logFile), 0, 0, 0};
+                versions.put(SnapshotLog.getVersion(logFile), counts);
+            }
+            try (BufferedReader reader = open(logFile)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(SnapshotLog.ADDED + "\t")) {
+                        counts[1]++;
+                    } else if (line.startsWith(SnapshotLog.CHANGED + "\t")) {
+                        counts[2]++;
+                    } else if (line.startsWith(SnapshotLog.REMOVED + "\t")) {
+                        counts[3]++;
+                    }
+                }
+            } catch (EOFException e) {
+                logger.warn("{} ends before its crawl did. The changes made after it was last flushed are missing",
+                        logFile);
+            }
+        }
+        out.write("version\tstarted\tadded\tchanged\tremoved\n");
+        for (Map.Entry<String, long[]> version : versions.entrySet()) {
+            long[] counts = version.getValue();
+            out.write(version.getKey() + "\t" + String.format("%tFT%<tT", counts[0]) + "\t" + counts[1] + "\t"
+                    + counts[2] + "\t" + counts[3] + "\n");
+        }
+    }
+
+
+    private BufferedReader open(File logFile) throws IOException {
+        return new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new BufferedInputStream(new FileInputStream(logFile))), StandardCharsets.UTF_8));
+    }
+
+
+    private boolean isIncluded(String languageCode, String term) {
+        return (getLanguageCode() == null || getLanguageCode().equals(languageCode))
+                && (getTerms().isEmpty() || getTerms().contains(term));
+    }
+
+
+    private static void printUsage() {
+        String s = "Usage:\n" +
+                "  snapshot -d <dBDir> (-v <version>) (-t <term>) (-l <lang>) (-o <file>)\n" +
+                "  snapshot -d <dBDir> --versions\n" +
+                "  snapshot -h\n\n" +
+                "where  -d <dBDir>   is the directory holding a Neo4j graph database crawled with --snapshot\n" +
+                "       -v <version> is the snapshot version to rebuild the neighborhoods at. Optional. Default\n" +
+                "                    is the latest version\n" +
+                "       -t <term>    is a term whose neighborhood to rebuild. Can be given multiple times.\n" +
+                "                    Optional. Default is all terms looked up\n" +
+                "       -l <lang>    restricts the terms to those in the given language. Optional\n" +
+                "       -o <file>    is the file to write the neighbors to. Optional. Default is standard output\n" +
+                "       --versions   lists the snapshot versions recorded, with their number of changes\n" +
+                "       -h           prints this usage information\n\n" +
+                "The neighbors are written as tab separated lines of language, term, neighbor, semantic\n" +
+                "label and strength.\n";
+
+        System.out.println(s);
+    }
+
+
+    private List<File> getLogFiles() {
+        return logFiles;
+    }
+
+
+    private Set<String> getTerms() {
+        return terms;
+    }
+
+
+    private String getLanguageCode() {
+        return languageCode;
+    }
+
+
+    private Map<Integer, String> getSemanticLabels() {
+        return semanticLabels;
+    }
+
+
+    private Map<String, Map<String, Double>> getNeighborhoods() {
+        return neighborhoods;
+    }
+}
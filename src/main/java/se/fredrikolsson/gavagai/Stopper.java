@@ -8,6 +8,11 @@ import java.util.concurrent.BlockingQueue;
 /**
  * Class responsible for keeping track of the state of the process of retrieving information from Gavagai's
  * semantic memories, and for stopping the application when certain criteria is met.
+ * <p>
+ * In a level-synchronous crawl, the application is not stopped while lookups of the current layer are pending, or
+ * while a layer is being written, since either may still produce requests for the next layer. Nor is it stopped
+ * while starting terms are still being read from a file. Requests waiting in the backlog for room in the queue
+ * count as awaiting processing. A level-synchronous crawl is stopped right away if a layer could not be written.
  */
 class Stopper implements Runnable {
 
@@ -15,18 +20,43 @@ class Stopper implements Runnable {
 
     private final Stoppable stoppable;
     private final BlockingQueue<LookupRequest> lookupRequestsQueue;
+    private final RequestBacklog requestBacklog;
+    private final LayerBarrier layerBarrier;
+    private final SeedReader seedReader;
 
     private boolean initializeShutdown = false;
 
-    Stopper(Stoppable stoppable, BlockingQueue<LookupRequest> lookupRequestQueue) {
+    Stopper(Stoppable stoppable,
+            BlockingQueue<LookupRequest> lookupRequestQueue,
+            RequestBacklog requestBacklog,
+            LayerBarrier layerBarrier,
+            SeedReader seedReader) {
         this.stoppable = stoppable;
         this.lookupRequestsQueue = lookupRequestQueue;
+        this.requestBacklog = requestBacklog;
+        this.layerBarrier = layerBarrier;
+        this.seedReader = seedReader;
     }
 
 
     @Override
     public void run() {
-        int numRequests = getLookupRequestsQueue().size();
+        if (getLayerBarrier() != null && getLayerBarrier().hasFailed()) {
+            logger.error("A layer could not be written. Stopping the failed crawl");
+            getStoppable().stop();
+            return;
+        }
+        int numRequests = getLookupRequestsQueue().size() + getRequestBacklog().size();
+        if (getSeedReader() != null && !getSeedReader().isDone()) {
+            setInitializeShutdown(false);
+            logger.info("{} Lexicon Lookup Requests await processing. Still reading starting terms", numRequests);
+            return;
+        }
+        if (getLayerBarrier() != null && numRequests == 0 && !getLayerBarrier().isIdle()) {
+            setInitializeShutdown(false);
+            logger.info("No Lexicon Lookup Requests await processing, but the current layer is not done");
+            return;
+        }
         if (isInitializeShutdown()) {
             if (numRequests == 0) {
                 logger.info("No more Lexicon Lookup Requests available. Shutting down.");
@@ -66,4 +96,19 @@ class Stopper implements Runnable {
         return lookupRequestsQueue;
     }
 
+
+    private RequestBacklog getRequestBacklog() {
+        return requestBacklog;
+    }
+
+
+    private LayerBarrier getLayerBarrier() {
+        return layerBarrier;
+    }
+
+
+    private SeedReader getSeedReader() {
+        return seedReader;
+    }
+
 }
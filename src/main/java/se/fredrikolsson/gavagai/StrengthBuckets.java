@@ -0,0 +1,70 @@
+package se.fredrikolsson.gavagai;
+
+/**
+ * Class deciding which strength bucket a NEIGHBOR relationship belongs to.
+ * <p>
+ * A relationship with a strength of at least the strong cut-off is of type NEIGHBOR_STRONG, one with a strength of
+ * at least the medium cut-off is of type NEIGHBOR_MEDIUM, and any other is of type NEIGHBOR_WEAK. Queries for
+ * strong neighbors can then expand relationships of a given type only, instead of reading the strength property
+ * of every relationship. The bucketed relationships are written either in addition to, or instead of, the
+ * generic NEIGHBOR relationships.
+ */
+class StrengthBuckets {
+
+    private final double strongCutOff;
+    private final double mediumCutOff;
+    private final boolean isExclusive;
+
+
+    /**
+     * @param isExclusive true if the bucketed relationships replace the NEIGHBOR relationships, false if they are
+     *                    written alongside them.
+     */
+    StrengthBuckets(double strongCutOff, double mediumCutOff, boolean isExclusive) {
+        if (mediumCutOff > strongCutOff) {
+            throw new IllegalArgumentException("The medium cut-off " + mediumCutOff
+                    + " is greater than the strong cut-off " + strongCutOff);
+        }
+        this.strongCutOff = strongCutOff;
+        this.mediumCutOff = mediumCutOff;
+        this.isExclusive = isExclusive;
+    }
+
+
+    /**
+     * Parses cut-offs given as "strong,medium", e.g. "0.5,0.3".
+     */
+    static StrengthBuckets parse(String cutOffs, boolean isExclusive) {
+        String[] parts = cutOffs.split(",");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Expected strength bucket cut-offs as <strong>,<medium>, got \""
+                    + cutOffs + "\"");
+        }
+        return new StrengthBuckets(Double.valueOf(parts[0].trim()), Double.valueOf(parts[1].trim()), isExclusive);
+    }
+
+
+    LexiconLookupResponseWorker.TermRelation getRelationType(double strength) {
+        if (strength >= getStrongCutOff()) {
+            return LexiconLookupResponseWorker.TermRelation.NEIGHBOR_STRONG;
+        } else if (strength >= getMediumCutOff()) {
+            return LexiconLookupResponseWorker.TermRelation.NEIGHBOR_MEDIUM;
+        }
+        return LexiconLookupResponseWorker.TermRelation.NEIGHBOR_WEAK;
+    }
+
+
+    boolean isExclusive() {
+        return isExclusive;
+    }
+
+
+    private double getStrongCutOff() {
+        return strongCutOff;
+    }
+
+
+    private double getMediumCutOff() {
+        return mediumCutOff;
+    }
+}
@@ -0,0 +1,32 @@
+package se.fredrikolsson.gavagai;
+
+/**
+ * Ways of combining the strengths with which two terms are similar to each other, as seen from the lookup of
+ * either term, into the strength of a single undirected relationship.
+ */
+enum StrengthCombination {
+
+    MAX {
+        @Override
+        double combine(double sourceStrength, double targetStrength) {
+            return Math.max(sourceStrength, targetStrength);
+        }
+    },
+
+    MEAN {
+        @Override
+        double combine(double sourceStrength, double targetStrength) {
+            return (sourceStrength + targetStrength) / 2.0;
+        }
+    },
+
+    MIN {
+        @Override
+        double combine(double sourceStrength, double targetStrength) {
+            return Math.min(sourceStrength, targetStrength);
+        }
+    };
+
+
+    abstract double combine(double sourceStrength, double targetStrength);
+}
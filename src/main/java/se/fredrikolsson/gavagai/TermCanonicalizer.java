@@ -0,0 +1,165 @@
+package se.fredrikolsson.gavagai;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.text.Normalizer;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Class responsible for bringing terms that differ only trivially to the same canonical form, so that they are
+ * looked up and stored once.
+ * <p>
+ * The steps are applied in the order NFC normalization, lower-casing and whitespace collapsing. Lower-casing uses
+ * the root locale, which is simple case folding for most scripts, but does not expand characters such as the
+ * German sharp s. Collapsing whitespace trims the term and replaces every run of whitespace inside it, including
+ * non-breaking spaces, tabs and line breaks, with a single space.
+ * <p>
+ * Most terms are already canonical. They are recognized in a single pass over their characters, and returned as
+ * they are, without allocating. The canonical forms of the other terms are cached.
+ */
+class TermCanonicalizer {
+
+    private final static int CACHE_SIZE = 100000;
+    private final static char FIRST_COMBINING_CHARACTER = '\u0300';
+
+    private final Set<Step> steps;
+    private final Cache<String, String> cache;
+
+
+    TermCanonicalizer(Set<Step> steps) {
+        this.steps = steps.isEmpty() ? EnumSet.noneOf(Step.class) : EnumSet.copyOf(steps);
+        this.cache = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+    }
+
+
+    /**
+     * Parses steps given as a comma separated list of nfc, case and whitespace.
+     */
+    static TermCanonicalizer parse(String steps) {
+        Set<Step> result = EnumSet.noneOf(Step.class);
+        for (String step : steps.split(",")) {
+            result.add(Step.valueOf(step.trim().toUpperCase(Locale.ROOT)));
+        }
+        return new TermCanonicalizer(result);
+    }
+
+
+    /**
+     * Returns a canonicalizer that leaves all terms as they are.
+     */
+    static TermCanonicalizer none() {
+        return new TermCanonicalizer(EnumSet.noneOf(Step.class));
+    }
+
+
+    boolean isEnabled() {
+        return !getSteps().isEmpty();
+    }
+
+
+    String canonicalize(String term) {
+        if (!isEnabled() || isCanonical(term)) {
+            return term;
+        }
+        String result = getCache().getIfPresent(term);
+        if (result == null) {
+            result = transform(term);
+            getCache().put(term, result);
+        }
+        return result;
+    }
+
+
+    /**
+     * Tells whether the steps would leave the term as it is. Terms made up of characters below the first combining
+     * character, which covers most Latin script, are always in NFC, and are checked without allocating.
+     */
+    private boolean isCanonical(String term) {
+        boolean isCaseFolded = getSteps().contains(Step.CASE);
+        boolean isWhitespaceCollapsed = getSteps().contains(Step.WHITESPACE);
+        boolean mayNeedNormalization = false;
+        boolean previousIsSpace = true;
+        for (int i = 0; i < term.length(); i++) {
+            char c = term.charAt(i);
+            if (c >= FIRST_COMBINING_CHARACTER) {
+                mayNeedNormalization = true;
+            }
+            if (isCaseFolded && c != Character.toLowerCase(c)) {
+                return false;
+            }
+            if (isWhitespaceCollapsed && isWhitespace(c)) {
+                if (c != ' ' || previousIsSpace) {
+                    return false;
+                }
+                previousIsSpace = true;
+            } else {
+                previousIsSpace = false;
+            }
+        }
+        if (isWhitespaceCollapsed && previousIsSpace && !term.isEmpty()) {
+            return false;
+        }
+        return !mayNeedNormalization || !getSteps().contains(Step.NFC)
+                || Normalizer.isNormalized(term, Normalizer.Form.NFC);
+    }
+
+
+    private String transform(String term) {
+        String result = term;
+        if (getSteps().contains(Step.NFC)) {
+            result = Normalizer.normalize(result, Normalizer.Form.NFC);
+        }
+        if (getSteps().contains(Step.CASE)) {
+            result = result.toLowerCase(Locale.ROOT);
+        }
+        if (getSteps().contains(Step.WHITESPACE)) {
+            StringBuilder s = new StringBuilder(result.length());
+            boolean pendingSpace = false;
+            for (int i = 0; i < result.length(); i++) {
+                char c = result.charAt(i);
+                if (isWhitespace(c)) {
+                    pendingSpace = s.length() > 0;
+                } else {
+                    if (pendingSpace) {
+                        s.append(' ');
+                        pendingSpace = false;
+                    }
+                    s.append(c);
+                }
+            }
+            result = s.toString();
+        }
+        return result;
+    }
+
+
+    /**
+     * Drops the cached canonical forms, to free memory. They are computed again as needed.
+     */
+    void clearCache() {
+        getCache().invalidateAll();
+    }
+
+
+    static boolean isWhitespace(char c) {
+        return Character.isWhitespace(c) || Character.isSpaceChar(c);
+    }
+
+
+    private Set<Step> getSteps() {
+        return steps;
+    }
+
+
+    private Cache<String, String> getCache() {
+        return cache;
+    }
+
+
+    enum Step {
+        NFC, CASE, WHITESPACE
+    }
+}
@@ -0,0 +1,51 @@
+package se.fredrikolsson.gavagai;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class CompactIdMapTest {
+
+
+    @Test
+    public void mapsKeysToIds() {
+        CompactIdMap map = new CompactIdMap();
+        map.put("gift", 0);
+        map.put("en\u0000gift", 1);
+        assertEquals(map.get("gift"), 0);
+        assertEquals(map.get("en\u0000gift"), 1);
+        assertEquals(map.get("sv\u0000gift"), CompactIdMap.NO_ID);
+        assertEquals(map.size(), 2);
+    }
+
+
+    @Test
+    public void replacesIdOfKey() {
+        CompactIdMap map = new CompactIdMap();
+        map.put("gift", 3);
+        map.put("gift", 7);
+        assertEquals(map.get("gift"), 7);
+        assertEquals(map.size(), 1);
+    }
+
+
+    @Test
+    public void keepsIdsWhenGrowing() {
+        CompactIdMap map = new CompactIdMap();
+        int numKeys = 200000;
+        for (int i = 0; i < numKeys; i++) {
+            map.put("term" + i, (long) i << 20);
+        }
+        assertEquals(map.size(), numKeys);
+        for (int i = 0; i < numKeys; i++) {
+            assertEquals(map.get("term" + i), (long) i << 20);
+        }
+        assertEquals(map.get("term" + numKeys), CompactIdMap.NO_ID);
+    }
+
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void refusesNegativeIds() {
+        new CompactIdMap().put("gift", CompactIdMap.NO_ID);
+    }
+}
@@ -0,0 +1,158 @@
+package se.fredrikolsson.gavagai;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Runs jobs through real request workers, with every lookup answered from the response cache, and checks that each
+ * pending lookup is counted down exactly once: when its response has been processed, when it gives no response,
+ * when it is dropped after failing repeatedly, and when its job is cancelled.
+ */
+public class CrawlJobTest {
+
+    private final static int NUM_WORKERS = 3;
+    private final static int MAX_DISTANCE = 4;
+    private final static long TIMEOUT_MILLIS = 30000;
+
+    private BlockingQueue<LookupRequest> requestQueue;
+    private BlockingQueue<LookupResponse> responseQueue;
+    private RequestBacklog requestBacklog;
+    private Cache<String, JSONObject> responseCache;
+    private ExecutorService executor;
+
+
+    @BeforeMethod
+    public void startRequestWorkers() throws Exception {
+        // A small queue, so that spawned lookups and retries wait in the backlog.
+        requestQueue = new LinkedBlockingQueue<>(4);
+        responseQueue = new LinkedBlockingQueue<>();
+        requestBacklog = new RequestBacklog(requestQueue, null);
+        responseCache = CacheBuilder.newBuilder().build();
+        for (int i = 0; i < 2 << MAX_DISTANCE; i++) {
+            // Each term reaches two others, a term whose response cannot be read, and one without neighbors.
+            responseCache.put("t" + i + "@en",
+                    createResponse("t" + (2 * i + 1), "t" + (2 * i + 2), "unreadable" + i, "isolated" + i));
+            responseCache.put("unreadable" + i + "@en", new JSONObject());
+            responseCache.put("isolated" + i + "@en", createResponse());
+        }
+        executor = Executors.newFixedThreadPool(NUM_WORKERS);
+        for (int i = 0; i < NUM_WORKERS; i++) {
+            executor.execute(new LexiconLookupRequestWorker(
+                    requestQueue,
+                    responseQueue,
+                    new ApiKeyPool(Collections.singletonList("key"), ApiKeyPool.UNLIMITED, 0),
+                    newUnlimitedBudget(),
+                    new HedgingPolicy(0.0),
+                    null,
+                    requestBacklog,
+                    new MemoryGovernor(0.75, 0.9, responseQueue),
+                    responseCache));
+        }
+    }
+
+
+    @AfterMethod
+    public void stopRequestWorkers() {
+        executor.shutdownNow();
+    }
+
+
+    @Test(timeOut = 60000)
+    public void countsDownEveryLookupOfFinishedJob() throws Exception {
+        CrawlJob job = submit("t0");
+        processResponses(job);
+
+        assertEquals(job.getStatus(), CrawlJob.Status.DONE);
+        assertEquals(job.getNumPendingLookups(), 0);
+        assertTrue(requestQueue.isEmpty() && requestBacklog.isEmpty() && responseQueue.isEmpty());
+    }
+
+
+    @Test(timeOut = 60000)
+    public void countsDownEveryLookupOfCancelledJob() throws Exception {
+        CrawlJob job = submit("t0", "t1", "t2");
+        responseQueue.take();
+        job.cancel();
+        job.lookupDone();
+        processResponses(job);
+
+        assertEquals(job.getStatus(), CrawlJob.Status.CANCELLED);
+        assertEquals(job.getNumPendingLookups(), 0);
+    }
+
+
+    private CrawlJob submit(String... terms) {
+        CrawlJob job = new CrawlJob("1", "en", MAX_DISTANCE, newUnlimitedBudget());
+        job.lookupsIssued(terms.length);
+        for (String term : terms) {
+            assertTrue(requestQueue.offer(new LookupRequest(term, "en", 0, job)));
+        }
+        return job;
+    }
+
+
+    /**
+     * Does what the response worker does for the job's lookups: feeds the backlog, spawns the lookups of each
+     * response, and counts the response's lookup as done.
+     */
+    private void processResponses(CrawlJob job) throws Exception {
+        Set<String> termsReached = new HashSet<>();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!job.isFinished() && System.currentTimeMillis() < deadline) {
+            requestBacklog.feed();
+            LookupResponse response = responseQueue.poll(10, TimeUnit.MILLISECONDS);
+            if (response == null) {
+                continue;
+            }
+            if (!job.isCancelled() && response.getCurrentDistance() <= job.getMaxDistance()) {
+                for (String term : response.getSemanticallySimilarTerms()) {
+                    if (termsReached.add(term)) {
+                        requestBacklog.add(new LookupRequest(term, "en", response.getCurrentDistance(), job));
+                    }
+                }
+            }
+            job.lookupDone();
+        }
+        assertTrue(job.awaitCompletion(0), "Lookups left pending: " + job.getNumPendingLookups());
+        // Leave time for a lookup counted down twice to show.
+        Thread.sleep(200);
+    }
+
+
+    private static JSONObject createResponse(String... words) throws Exception {
+        JSONArray wordArray = new JSONArray();
+        for (String word : words) {
+            wordArray.put(new JSONObject().put("word", word).put("strength", 0.5));
+        }
+        JSONArray filaments = new JSONArray();
+        if (words.length > 0) {
+            filaments.put(new JSONObject()
+                    .put("labels", new JSONArray().put(new JSONObject().put("type", "LEFT").put("label", "x")))
+                    .put("words", wordArray));
+        }
+        return new JSONObject().put("semanticallySimilarWordFilaments", filaments);
+    }
+
+
+    private static CrawlBudget newUnlimitedBudget() {
+        return new CrawlBudget(CrawlBudget.UNLIMITED, CrawlBudget.UNLIMITED, CrawlBudget.UNLIMITED,
+                CrawlBudget.UNLIMITED);
+    }
+}
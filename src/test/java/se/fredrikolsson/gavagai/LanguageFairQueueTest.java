@@ -0,0 +1,121 @@
+package se.fredrikolsson.gavagai;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class LanguageFairQueueTest {
+
+
+    @Test
+    public void interleavesLanguagesByWeight() {
+        LanguageFairQueue queue = new LanguageFairQueue(100, weights("en", 2, "sv", 1));
+        add(queue, "en", 6);
+        add(queue, "sv", 3);
+        assertEquals(takeLanguages(queue, 9),
+                Arrays.asList("en", "sv", "en", "en", "sv", "en", "en", "sv", "en"));
+        assertNull(queue.poll());
+    }
+
+
+    @Test
+    public void servesEqualWeightsInTurn() {
+        LanguageFairQueue queue = new LanguageFairQueue(100, weights("en", 1, "sv", 1, "de", 1));
+        add(queue, "de", 2);
+        add(queue, "sv", 2);
+        add(queue, "en", 2);
+        assertEquals(takeLanguages(queue, 6), Arrays.asList("en", "sv", "de", "en", "sv", "de"));
+    }
+
+
+    @Test
+    public void givesTurnsOfEmptyLanguageToOthers() {
+        LanguageFairQueue queue = new LanguageFairQueue(100, weights("en", 1, "sv", 3));
+        add(queue, "en", 4);
+        add(queue, "sv", 1);
+        assertEquals(takeLanguages(queue, 5), Arrays.asList("sv", "en", "en", "en", "en"));
+    }
+
+
+    @Test
+    public void letsReturningLanguageStartAfresh() {
+        LanguageFairQueue queue = new LanguageFairQueue(100, weights("en", 1, "sv", 1));
+        add(queue, "en", 3);
+        assertEquals(takeLanguages(queue, 3), Arrays.asList("en", "en", "en"));
+        add(queue, "en", 2);
+        add(queue, "sv", 2);
+        assertEquals(takeLanguages(queue, 4), Arrays.asList("en", "sv", "en", "sv"));
+    }
+
+
+    @Test
+    public void servesLanguageWithoutWeightWithWeightOne() {
+        LanguageFairQueue queue = new LanguageFairQueue(100, weights("en", 1));
+        add(queue, "en", 2);
+        add(queue, "fr", 2);
+        assertEquals(takeLanguages(queue, 4), Arrays.asList("en", "fr", "en", "fr"));
+    }
+
+
+    @Test
+    public void keepsOrderWithinLanguage() {
+        LanguageFairQueue queue = new LanguageFairQueue(100, weights("en", 1));
+        for (String term : Arrays.asList("a", "b", "c")) {
+            queue.offer(new LookupRequest(term, "en"));
+        }
+        assertEquals(queue.peek().getTerm(), "a");
+        List<LookupRequest> drained = new ArrayList<>();
+        assertEquals(queue.drainTo(drained), 3);
+        assertEquals(drained.get(0).getTerm(), "a");
+        assertEquals(drained.get(1).getTerm(), "b");
+        assertEquals(drained.get(2).getTerm(), "c");
+    }
+
+
+    @Test
+    public void sharesCapacityBetweenLanguages() {
+        LanguageFairQueue queue = new LanguageFairQueue(3, weights("en", 1, "sv", 1));
+        add(queue, "en", 2);
+        assertTrue(queue.offer(new LookupRequest("sv0", "sv")));
+        assertFalse(queue.offer(new LookupRequest("sv1", "sv")));
+        assertEquals(queue.remainingCapacity(), 0);
+        assertEquals(queue.getFrontierSizes().get("en"), Integer.valueOf(2));
+        assertEquals(queue.getFrontierSizes().get("sv"), Integer.valueOf(1));
+        queue.poll();
+        assertTrue(queue.offer(new LookupRequest("sv1", "sv")));
+    }
+
+
+    private static Map<String, Integer> weights(Object... languagesAndWeights) {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (int i = 0; i < languagesAndWeights.length; i += 2) {
+            result.put((String) languagesAndWeights[i], (Integer) languagesAndWeights[i + 1]);
+        }
+        return result;
+    }
+
+
+    private static void add(LanguageFairQueue queue, String languageCode, int numRequests) {
+        for (int i = 0; i < numRequests; i++) {
+            assertTrue(queue.offer(new LookupRequest(languageCode + i, languageCode)));
+        }
+    }
+
+
+    private static List<String> takeLanguages(LanguageFairQueue queue, int numRequests) {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < numRequests; i++) {
+            result.add(queue.poll().getLanguageCode());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,125 @@
+package se.fredrikolsson.gavagai;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class RequestBacklogTest {
+
+    private final static int NUM_WORKERS = 4;
+    private final static int NUM_REQUESTS = 2000;
+
+
+    @Test
+    public void feedsRequestsAsQueueHasRoom() {
+        BlockingQueue<LookupRequest> queue = new LinkedBlockingQueue<>(2);
+        RequestBacklog backlog = new RequestBacklog(queue, null);
+        for (int i = 0; i < 5; i++) {
+            backlog.add(new LookupRequest("term" + i, "en"));
+        }
+        assertEquals(backlog.size(), 5);
+        assertEquals(backlog.feed(), 2);
+        assertEquals(backlog.feed(), 0);
+        assertEquals(backlog.size(), 3);
+
+        assertEquals(queue.poll().getTerm(), "term0");
+        assertEquals(backlog.feed(), 1);
+        queue.clear();
+        assertEquals(backlog.feed(), 2);
+        assertTrue(backlog.isEmpty());
+        assertEquals(queue.poll().getTerm(), "term3");
+        assertEquals(queue.poll().getTerm(), "term4");
+    }
+
+
+    @Test
+    public void takesRetriesWhenQueueIsFull() {
+        BlockingQueue<LookupRequest> queue = new LinkedBlockingQueue<>(1);
+        LayerBarrier layerBarrier = new LayerBarrier();
+        RequestBacklog backlog = new RequestBacklog(queue, layerBarrier);
+        backlog.add(new LookupRequest("a", "en"));
+        backlog.add(new LookupRequest("b", "en"));
+        backlog.feed();
+        LookupRequest request = queue.poll();
+        backlog.feed();
+        assertEquals(queue.remainingCapacity(), 0);
+
+        backlog.retry(request);
+        assertEquals(backlog.size(), 1);
+        // The retried lookup is counted again once it is fed, and b is still pending.
+        assertFalse(layerBarrier.isLayerDone());
+        queue.poll();
+        layerBarrier.lookupDone();
+        assertTrue(layerBarrier.isLayerDone());
+        assertFalse(backlog.isEmpty());
+        backlog.feed();
+        assertFalse(layerBarrier.isLayerDone());
+        assertEquals(queue.poll().getTerm(), "a");
+        layerBarrier.lookupDone();
+        assertTrue(layerBarrier.isLayerDone() && backlog.isEmpty());
+    }
+
+
+    /**
+     * Request workers fail every other attempt at a lookup, and retry it through the backlog, while the queue is kept
+     * full. The layer must not be seen as done before every lookup has succeeded.
+     */
+    @Test(timeOut = 60000)
+    public void keepsLayerPendingWhileRetriesWait() throws Exception {
+        final BlockingQueue<LookupRequest> queue = new LinkedBlockingQueue<>(8);
+        final LayerBarrier layerBarrier = new LayerBarrier();
+        final RequestBacklog backlog = new RequestBacklog(queue, layerBarrier);
+        final AtomicInteger numSucceeded = new AtomicInteger();
+        for (int i = 0; i < NUM_REQUESTS; i++) {
+            backlog.add(new LookupRequest("term" + i, "en"));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_WORKERS);
+        try {
+            List<Future<Void>> workers = new ArrayList<>();
+            for (int w = 0; w < NUM_WORKERS; w++) {
+                workers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            LookupRequest request = queue.poll(10, TimeUnit.MILLISECONDS);
+                            if (request == null) {
+                                continue;
+                            }
+                            if (request.getNumberOfLookupAttempts() == 0) {
+                                request.increaseNumberOfLookupAttempts();
+                                backlog.retry(request);
+                            } else {
+                                numSucceeded.incrementAndGet();
+                                layerBarrier.lookupDone();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            // Checked in the order the response worker checks them.
+            while (!(layerBarrier.isLayerDone() && backlog.isEmpty())) {
+                backlog.feed();
+                Thread.sleep(1);
+            }
+            assertEquals(numSucceeded.get(), NUM_REQUESTS);
+            assertTrue(queue.isEmpty());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package se.fredrikolsson.gavagai;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class RingBufferQueueTest {
+
+    private final static int NUM_PRODUCERS = 4;
+    private final static int NUM_ELEMENTS_PER_PRODUCER = 50000;
+
+
+    @DataProvider(name = "waitStrategies")
+    public Object[][] waitStrategies() {
+        RingBufferQueue.WaitStrategy[] strategies = RingBufferQueue.WaitStrategy.values();
+        Object[][] result = new Object[strategies.length][];
+        for (int i = 0; i < strategies.length; i++) {
+            result[i] = new Object[]{strategies[i]};
+        }
+        return result;
+    }
+
+
+    /**
+     * The strategies that give up the CPU while waiting. Spinning producers may otherwise starve the consumer on
+     * machines with fewer cores than threads.
+     */
+    @DataProvider(name = "yieldingWaitStrategies")
+    public Object[][] yieldingWaitStrategies() {
+        return new Object[][]{
+                {RingBufferQueue.WaitStrategy.YIELDING},
+                {RingBufferQueue.WaitStrategy.SLEEPING},
+                {RingBufferQueue.WaitStrategy.BLOCKING},
+        };
+    }
+
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(new RingBufferQueue<Integer>(5, RingBufferQueue.WaitStrategy.BUSY_SPIN).remainingCapacity(), 8);
+        assertEquals(new RingBufferQueue<Integer>(8, RingBufferQueue.WaitStrategy.BUSY_SPIN).remainingCapacity(), 8);
+        assertEquals(new RingBufferQueue<Integer>(1, RingBufferQueue.WaitStrategy.BUSY_SPIN).remainingCapacity(), 2);
+    }
+
+
+    @Test(dataProvider = "waitStrategies")
+    public void emptyQueueHandsOutNothing(RingBufferQueue.WaitStrategy waitStrategy) throws InterruptedException {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(4, waitStrategy);
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+        assertNull(queue.peek());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(queue.drainTo(drained), 0);
+        assertTrue(drained.isEmpty());
+        assertFalse(queue.iterator().hasNext());
+    }
+
+
+    @Test(dataProvider = "waitStrategies")
+    public void fullQueueRefusesElements(RingBufferQueue.WaitStrategy waitStrategy) throws InterruptedException {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(4, waitStrategy);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertEquals(queue.size(), 4);
+        assertEquals(queue.remainingCapacity(), 0);
+        assertFalse(queue.offer(4));
+        assertFalse(queue.offer(4, 10, TimeUnit.MILLISECONDS));
+
+        assertEquals(queue.poll(), Integer.valueOf(0));
+        assertTrue(queue.offer(4));
+        assertEquals(new ArrayList<>(queue), Arrays.asList(1, 2, 3, 4));
+    }
+
+
+    @Test
+    public void keepsOrderAcrossWrapAround() {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(4, RingBufferQueue.WaitStrategy.BUSY_SPIN);
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 100; round++) {
+            // Leave some elements behind, so that the head and tail wrap around at different points.
+            while (queue.offer(next)) {
+                next++;
+            }
+            for (int i = 0; i < 1 + round % 4; i++) {
+                assertEquals(queue.peek(), Integer.valueOf(expected));
+                assertEquals(queue.poll(), Integer.valueOf(expected++));
+            }
+        }
+        List<Integer> drained = new ArrayList<>();
+        queue.drainTo(drained);
+        for (Integer e : drained) {
+            assertEquals(e, Integer.valueOf(expected++));
+        }
+        assertEquals(expected, next);
+        assertTrue(queue.isEmpty());
+    }
+
+
+    @Test
+    public void drainsUpToMaxElements() {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(8, RingBufferQueue.WaitStrategy.BUSY_SPIN);
+        for (int i = 0; i < 6; i++) {
+            queue.offer(i);
+        }
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(queue.drainTo(drained, 4), 4);
+        assertEquals(drained, Arrays.asList(0, 1, 2, 3));
+        assertEquals(queue.size(), 2);
+        assertEquals(queue.remainingCapacity(), 6);
+        assertEquals(queue.drainTo(drained, 4), 2);
+        assertEquals(drained, Arrays.asList(0, 1, 2, 3, 4, 5));
+    }
+
+
+    @Test
+    public void iteratesOverPublishedElementsOnly() {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(4, RingBufferQueue.WaitStrategy.BUSY_SPIN);
+        for (int i = 0; i < 4; i++) {
+            queue.offer(i);
+        }
+        queue.poll();
+        queue.offer(4);
+        Iterator<Integer> iterator = queue.iterator();
+        queue.poll();
+        // The iterator works on a snapshot, taken before the second element was.
+        List<Integer> elements = new ArrayList<>();
+        while (iterator.hasNext()) {
+            elements.add(iterator.next());
+        }
+        assertEquals(elements, Arrays.asList(1, 2, 3, 4));
+    }
+
+
+    @Test(dataProvider = "yieldingWaitStrategies", timeOut = 60000)
+    public void drainsElementsOfSeveralProducersInTheirOrder(RingBufferQueue.WaitStrategy waitStrategy)
+            throws Exception {
+        final RingBufferQueue<Integer> queue = new RingBufferQueue<>(64, waitStrategy);
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_PRODUCERS);
+        try {
+            List<Future<Void>> producers = new ArrayList<>();
+            for (int p = 0; p < NUM_PRODUCERS; p++) {
+                final int producer = p;
+                producers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        for (int i = 0; i < NUM_ELEMENTS_PER_PRODUCER; i++) {
+                            queue.put(producer * NUM_ELEMENTS_PER_PRODUCER + i);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            int[] nextByProducer = new int[NUM_PRODUCERS];
+            int numReceived = 0;
+            List<Integer> batch = new ArrayList<>();
+            while (numReceived < NUM_PRODUCERS * NUM_ELEMENTS_PER_PRODUCER) {
+                batch.clear();
+                if (queue.drainTo(batch, 16) == 0) {
+                    Integer e = queue.poll(10, TimeUnit.SECONDS);
+                    assertNotNull(e, "Timed out waiting for producers");
+                    batch.add(e);
+                }
+                for (Integer e : batch) {
+                    int producer = e / NUM_ELEMENTS_PER_PRODUCER;
+                    assertEquals(e % NUM_ELEMENTS_PER_PRODUCER, nextByProducer[producer]++);
+                    numReceived++;
+                }
+            }
+            for (Future<Void> producer : producers) {
+                producer.get();
+            }
+            assertTrue(queue.isEmpty());
+            assertNull(queue.poll());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
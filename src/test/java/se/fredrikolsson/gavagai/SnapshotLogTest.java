@@ -0,0 +1,52 @@
+package se.fredrikolsson.gavagai;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+
+public class SnapshotLogTest {
+
+
+    @DataProvider(name = "terms")
+    public Object[][] terms() {
+        return new Object[][]{
+                {""},
+                {"no-fly zone"},
+                {"tab\tbed"},
+                {"line\nbreak"},
+                {"carriage\rreturn"},
+                {"back\\slash"},
+                {"trailing\\"},
+                {"\\"},
+                {"literal \\t and \\n"},
+                {"\\\t\\\n"},
+                {"\t\n\r"},
+        };
+    }
+
+
+    @Test(dataProvider = "terms")
+    public void unescapesWhatItEscapes(String term) {
+        String escaped = SnapshotLog.escape(term);
+        assertFalse(escaped.contains("\t") || escaped.contains("\n") || escaped.contains("\r"), escaped);
+        assertEquals(SnapshotLog.unescape(escaped), term);
+    }
+
+
+    @Test
+    public void leavesPlainTermsAsTheyAre() {
+        String term = "no-fly zone";
+        assertSame(SnapshotLog.escape(term), term);
+        assertSame(SnapshotLog.unescape(term), term);
+    }
+
+
+    @Test
+    public void escapesTheFieldSeparator() {
+        assertEquals(SnapshotLog.escape("a\tb\\c"), "a\\tb\\\\c");
+        assertEquals(SnapshotLog.escape("a\tb").split("\t", -1).length, 1);
+    }
+}
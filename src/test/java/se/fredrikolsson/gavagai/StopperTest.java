@@ -0,0 +1,67 @@
+package se.fredrikolsson.gavagai;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class StopperTest {
+
+
+    @Test
+    public void stopsAfterTwoChecksWithoutRequests() {
+        BlockingQueue<LookupRequest> queue = new LinkedBlockingQueue<>();
+        StoppableStub stoppable = new StoppableStub();
+        Stopper stopper = new Stopper(stoppable, queue, new RequestBacklog(queue, null), null, null);
+        stopper.run();
+        assertFalse(stoppable.isStopped());
+        stopper.run();
+        assertTrue(stoppable.isStopped());
+    }
+
+
+    @Test
+    public void keepsRunningWhileRequestsWaitInBacklog() {
+        BlockingQueue<LookupRequest> queue = new LinkedBlockingQueue<>();
+        RequestBacklog backlog = new RequestBacklog(queue, null);
+        backlog.add(new LookupRequest("gift", "en"));
+        StoppableStub stoppable = new StoppableStub();
+        Stopper stopper = new Stopper(stoppable, queue, backlog, null, null);
+        stopper.run();
+        stopper.run();
+        assertFalse(stoppable.isStopped());
+    }
+
+
+    @Test
+    public void stopsFailedCrawlRightAway() {
+        BlockingQueue<LookupRequest> queue = new LinkedBlockingQueue<>();
+        LayerBarrier layerBarrier = new LayerBarrier();
+        layerBarrier.lookupsIssued(1);
+        layerBarrier.setFailed(true);
+        StoppableStub stoppable = new StoppableStub();
+        new Stopper(stoppable, queue, new RequestBacklog(queue, layerBarrier), layerBarrier, null).run();
+        assertTrue(stoppable.isStopped());
+    }
+
+
+    private static class StoppableStub implements Stoppable {
+
+        private boolean isStopped;
+
+
+        @Override
+        public void stop() {
+            isStopped = true;
+        }
+
+
+        @Override
+        public boolean isStopped() {
+            return isStopped;
+        }
+    }
+}
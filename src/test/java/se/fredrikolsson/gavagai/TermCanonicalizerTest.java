@@ -0,0 +1,80 @@
+package se.fredrikolsson.gavagai;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class TermCanonicalizerTest {
+
+
+    @Test
+    public void leavesTermsAsTheyAreWithoutSteps() {
+        TermCanonicalizer canonicalizer = TermCanonicalizer.none();
+        assertFalse(canonicalizer.isEnabled());
+        String term = "  No-Fly\u00a0Zone ";
+        assertSame(canonicalizer.canonicalize(term), term);
+    }
+
+
+    @Test
+    public void appliesAllSteps() {
+        TermCanonicalizer canonicalizer = TermCanonicalizer.parse("nfc, case, whitespace");
+        assertTrue(canonicalizer.isEnabled());
+        assertEquals(canonicalizer.canonicalize("  Cafe\u0301\u00a0\tAU\nLait "), "caf\u00e9 au lait");
+    }
+
+
+    @Test
+    public void normalizesToComposedForm() {
+        TermCanonicalizer canonicalizer = TermCanonicalizer.parse("nfc");
+        assertEquals(canonicalizer.canonicalize("Cafe\u0301"), "Caf\u00e9");
+        String composed = "Caf\u00e9";
+        assertSame(canonicalizer.canonicalize(composed), composed);
+    }
+
+
+    @Test
+    public void lowerCasesInRootLocale() {
+        TermCanonicalizer canonicalizer = TermCanonicalizer.parse("case");
+        assertEquals(canonicalizer.canonicalize("INFO"), "info");
+        // The sharp s is not expanded.
+        assertEquals(canonicalizer.canonicalize("STRA\u00dfE"), "stra\u00dfe");
+        assertEquals(canonicalizer.canonicalize("  A  B "), "  a  b ");
+    }
+
+
+    @Test
+    public void collapsesWhitespace() {
+        TermCanonicalizer canonicalizer = TermCanonicalizer.parse("whitespace");
+        assertEquals(canonicalizer.canonicalize(" no \t fly\u00a0\u00a0zone\n"), "no fly zone");
+        assertEquals(canonicalizer.canonicalize("   "), "");
+        assertEquals(canonicalizer.canonicalize("No Fly"), "No Fly");
+    }
+
+
+    @Test
+    public void returnsCanonicalTermsThemselves() {
+        TermCanonicalizer canonicalizer = TermCanonicalizer.parse("nfc,case,whitespace");
+        String term = "no-fly zone";
+        assertSame(canonicalizer.canonicalize(term), term);
+    }
+
+
+    @Test
+    public void computesSameFormAfterClearingCache() {
+        TermCanonicalizer canonicalizer = TermCanonicalizer.parse("case,whitespace");
+        String canonical = canonicalizer.canonicalize(" No  Fly ");
+        canonicalizer.clearCache();
+        assertEquals(canonicalizer.canonicalize(" No  Fly "), canonical);
+        assertEquals(canonical, "no fly");
+    }
+
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void refusesUnknownSteps() {
+        TermCanonicalizer.parse("nfc,stem");
+    }
+}